@@ -13,15 +13,13 @@ import com.beatofthedrum.wvdecoder.*;
 
 public class WvDemo
 {
-    static int [] temp_buffer = new int[Defines.SAMPLE_BUFFER_SIZE];
-
-    static byte [] pcm_buffer = new byte[4 * Defines.SAMPLE_BUFFER_SIZE];
-
     public static void main(String [] args)
     {
         long total_unpacked_samples = 0, total_samples; // was uint32_t in C
         int num_channels, bps;
-        WavpackContext wpc = new WavpackContext();
+        WavpackDecoder decoder = new WavpackDecoder();
+        WavpackContext wpc;
+        java.nio.ByteBuffer pcm_buffer;
         java.io.FileInputStream fistream;
         java.io.BufferedOutputStream fostream;
         java.io.DataInputStream in;
@@ -42,7 +40,19 @@ public class WvDemo
         {
             fistream = new java.io.FileInputStream(inputWVFile);
             in = new java.io.DataInputStream(new java.io.BufferedInputStream(fistream));
-            wpc = WavPackUtils.WavpackOpenFileInput(in);
+
+            // a hybrid file's correction file, if it is alongside, is used to decode it lossless
+
+            java.io.File wvcFile = new java.io.File(inputWVFile + "c");
+
+            if (inputWVFile.endsWith(".wv") && wvcFile.isFile())
+            {
+                java.io.DataInputStream wvc_in = new java.io.DataInputStream(
+                    new java.io.BufferedInputStream(new java.io.FileInputStream(wvcFile)));
+                decoder.reset(in, wvc_in);
+            }
+            else
+                decoder.reset(in);
         }
         catch (java.io.FileNotFoundException fe)
         {
@@ -50,6 +60,8 @@ public class WvDemo
             System.exit(1);
         }
 
+        wpc = decoder.getContext();
+
         if (wpc.error)
         {
             System.err.println("Sorry an error has occured");
@@ -69,6 +81,11 @@ public class WvDemo
 
         System.out.println("The wavpack file has " + bps + " bytes per sample");
 
+        // the file is decoded a block's worth of samples at a time, straight
+        // into the little-endian PCM of the wav file
+
+        pcm_buffer = java.nio.ByteBuffer.allocate((int) WavPackUtils.WavpackGetBlockSamples(wpc) * num_channels * bps);
+
         try
         {
 
@@ -82,17 +99,13 @@ public class WvDemo
             {
                 long samples_unpacked; // was uint32_t in C
 
-                samples_unpacked = WavPackUtils.WavpackUnpackSamples(wpc, temp_buffer, Defines.SAMPLE_BUFFER_SIZE / num_channels);
+                pcm_buffer.clear();
+                samples_unpacked = decoder.unpackPcmSamples(pcm_buffer, pcm_buffer.capacity() / (num_channels * bps));
 
                 total_unpacked_samples += samples_unpacked;
 
                 if (samples_unpacked > 0)
-                {
-                    samples_unpacked = samples_unpacked * num_channels;
-
-                    format_samples(bps, temp_buffer, samples_unpacked);
-                    fostream.write(pcm_buffer, 0, (int) samples_unpacked * bps);
-                }
+                    fostream.write(pcm_buffer.array(), 0, pcm_buffer.position());
 
                 if (samples_unpacked == 0)
                     break;
@@ -129,75 +142,4 @@ public class WvDemo
 
         java.lang.System.exit(0);
     }
-
-
-    // Reformat samples from longs in processor's native endian mode to
-    // little-endian data with (possibly) less than 4 bytes / sample.
-
-    static void format_samples(final int bps, int src [], long samcnt)
-    {
-        int temp;
-        int counter = 0;
-        int counter2 = 0;
-
-        switch (bps)
-        {
-            case 1:
-                while (samcnt > 0)
-                {
-                	pcm_buffer[counter] = (byte) (0x00FF & (src[counter] + 128));
-                    counter++;
-                    samcnt--;
-                }
-                break;
-
-            case 2:
-                while (samcnt > 0)
-                {
-                    temp = src[counter2];
-                    pcm_buffer[counter] = (byte) temp;
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 8);
-                    counter++;
-                    counter2++;
-                    samcnt--;
-                }
-
-                break;
-
-            case 3:
-                while (samcnt > 0)
-                {
-                    temp = src[counter2];
-                    pcm_buffer[counter] = (byte) temp;
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 8);
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 16);
-                    counter++;
-                    counter2++;
-                    samcnt--;
-                }
-
-                break;
-
-            case 4:
-                while (samcnt > 0)
-                {
-                    temp = src[counter2];
-                    pcm_buffer[counter] = (byte) temp;
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 8);
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 16);
-                    counter++;
-                    pcm_buffer[counter] = (byte) (temp >>> 24);
-                    counter++;
-                    counter2++;
-                    samcnt--;
-                }
-
-                break;
-        }
-    }
-}
\ No newline at end of file
+}
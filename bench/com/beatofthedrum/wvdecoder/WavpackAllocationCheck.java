@@ -0,0 +1,144 @@
+/*
+** WavpackAllocationCheck.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Checks that decoding allocates nothing once it is under way, by reading
+// the bytes allocated by the current thread (com.sun.management's
+// ThreadMXBean) around the decoding of whole files, after enough rounds
+// for the compiler to have settled. Each file is decoded over and over by
+// decoders taken from and given back to a WavpackDecoderPool, read from a
+// DataInputStream and (with a pool of its own) from a ByteBuffer. The blocks after the first must
+// allocate nothing at all, and neither must a whole file read from a
+// stream, from the opening of the file to the release of the decoder; a
+// file read from a buffer is allowed the views of the buffer that the
+// decoder makes when it is opened (two, and one more for each extra stream
+// of a multichannel file). The exit status is 1 if a file fails.
+// Run it (after building the benchmarks) with
+//
+//   java -cp bench/target/benchmarks.jar com.beatofthedrum.wvdecoder.WavpackAllocationCheck [file.wv ...]
+//
+// With no files a synthetic 16-bit stereo one is checked.
+
+public class WavpackAllocationCheck
+{
+    static final int WARMUP_ROUNDS = 200;
+    static final int MEASURED_ROUNDS = 20;
+
+    static com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+    long block_bytes, file_bytes, blocks;	// allocated over the measured rounds
+
+
+    public static void main(String [] args) throws java.io.IOException
+    {
+        boolean failed = false;
+
+        if (!threads.isThreadAllocatedMemorySupported())
+        {
+            System.err.println("this JVM does not count the bytes allocated by a thread");
+            System.exit(2);
+        }
+
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        if (args.length == 0)
+            failed = !check("synthetic", WavpackBenchData.synthetic_file(8, 22050));
+
+        for (String name : args)
+            failed |= !check(name, java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(name)));
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Check the one file, printing the bytes allocated for each block and for
+    // each file. Returns false if the file fails.
+
+    static boolean check(String name, byte [] data)
+    {
+        java.nio.ByteBuffer input = java.nio.ByteBuffer.wrap(data);
+        java.io.ByteArrayInputStream bytes = new java.io.ByteArrayInputStream(data);
+        java.io.DataInputStream stream = new java.io.DataInputStream(bytes);
+        WavpackDecoderPool stream_pool = new WavpackDecoderPool(1);
+        WavpackDecoderPool buffer_pool = new WavpackDecoderPool(1);
+        WavpackDecoder decoder = buffer_pool.open(input);
+        WavpackContext wpc = decoder.getContext();
+
+        if (wpc.error)
+        {
+            System.out.println(name + ": " + wpc.error_message);
+            buffer_pool.release(decoder);
+            return false;
+        }
+
+        int [] buffer = new int[(int) WavPackUtils.WavpackGetBlockSamples(wpc) * WavPackUtils.WavpackGetReducedChannels(wpc)];
+        WavpackAllocationCheck from_stream = new WavpackAllocationCheck();
+        WavpackAllocationCheck from_buffer = new WavpackAllocationCheck();
+
+        buffer_pool.release(decoder);
+
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; ++round)
+        {
+            boolean measured = round >= WARMUP_ROUNDS;
+
+            bytes.reset();
+
+            long start = allocated();
+
+            from_stream.decode(stream_pool.open(stream), stream_pool, buffer, measured, start);
+
+            start = allocated();
+
+            from_buffer.decode(buffer_pool.open(input), buffer_pool, buffer, measured, start);
+        }
+
+        System.out.println(name + ": " + from_stream.report() + " from a stream, " + from_buffer.report() + " from a buffer");
+
+        return from_stream.block_bytes == 0 && from_stream.file_bytes == 0 && from_buffer.block_bytes == 0;
+    }
+
+    // Decode the file opened by the decoder and release it, counting what
+    // was allocated since start (when the decoder was taken from the pool)
+    // if the round is measured.
+
+    void decode(WavpackDecoder decoder, WavpackDecoderPool pool, int [] buffer, boolean measured, long start)
+    {
+        if (decoder.unpackBlock(buffer) > 0)
+        {
+            long first = allocated();
+
+            while (decoder.unpackBlock(buffer) > 0)
+                if (measured)
+                    ++blocks;
+
+            if (measured)
+                block_bytes += allocated() - first;
+        }
+
+        pool.release(decoder);
+
+        if (measured)
+            file_bytes += allocated() - start;
+    }
+
+    String report()
+    {
+        return (blocks == 0 ? 0 : block_bytes / blocks) + " bytes per block and " + file_bytes / MEASURED_ROUNDS + " per file";
+    }
+
+    // Returns the bytes allocated by this thread so far.
+
+    static long allocated()
+    {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,445 @@
+/*
+** WavpackBenchData.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// The inputs of the benchmarks (see the Wavpack*Bench classes), all made
+// deterministically from fixed seeds so that every run measures exactly the
+// same work: residuals like those the entropy decoder produces, bitstreams
+// that get_words() decodes back into them, decorrelation passes with
+// history, block headers and a whole synthetic WavPack file. This is not
+// part of the library; it lives in the same package, to get at the
+// package-private routines, but in the bench source tree.
+
+class WavpackBenchData
+{
+    static final int SAMPLES = 4096;	// complete samples done by each operation
+
+
+    ////////////////////////////// decorrelation /////////////////////////////////
+
+    // A pass of the specified term with weights and history to start from.
+
+    static decorr_pass make_pass(int term)
+    {
+        java.util.Random random = new java.util.Random(term + 100);
+        decorr_pass dpp = new decorr_pass();
+
+        dpp.term = term;
+        dpp.delta = 2;
+        dpp.weight_A = term < 0 ? 512 : 384;
+        dpp.weight_B = term < 0 ? -256 : 384;
+
+        for (int i = 0; i < Defines.MAX_TERM; i++)
+        {
+            dpp.samples_A[i] = random.nextInt(8192) - 4096;
+            dpp.samples_B[i] = random.nextInt(8192) - 4096;
+        }
+
+        return dpp;
+    }
+
+    // Set a pass back to a starting state, without allocating.
+
+    static void copy_pass(decorr_pass from, decorr_pass to)
+    {
+        to.term = from.term;
+        to.delta = from.delta;
+        to.weight_A = from.weight_A;
+        to.weight_B = from.weight_B;
+        System.arraycopy(from.samples_A, 0, to.samples_A, 0, Defines.MAX_TERM);
+        System.arraycopy(from.samples_B, 0, to.samples_B, 0, Defines.MAX_TERM);
+    }
+
+
+    ////////////////////////////// files ////////////////////////////////////////
+
+    // Make a stereo 16-bit lossless file of the specified number of blocks.
+    // The audio is a pair of tones with some noise on each channel, encoded
+    // with joint stereo, four decorrelation passes (of the positive terms the
+    // default mode uses, last of all 18) and the entropy coder of
+    // write_words(), so the decoder goes through just the same steps as for
+    // a file from the real encoder.
+
+    static byte [] synthetic_file(int blocks, int block_samples)
+    {
+        java.io.ByteArrayOutputStream file = new java.io.ByteArrayOutputStream();
+        java.util.Random random = new java.util.Random(17);
+        byte terms [] = { 18, 18, 2, 3 };	// in metadata order, the last pass first
+        int num_terms = terms.length, delta = 2;
+        byte term_bytes [] = new byte[num_terms];
+        byte weight_bytes [] = new byte[num_terms * 2];
+        long flags = 1 | Defines.JOINT_STEREO | Defines.INITIAL_BLOCK | Defines.FINAL_BLOCK
+            | (9L << Defines.SRATE_LSB) | (16L << Defines.MAG_LSB);
+        WavpackMetadata entropy = metadata(Defines.ID_ENTROPY_VARS, entropy_vars());
+
+        for (int i = 0; i < num_terms; i++)
+        {
+            term_bytes[i] = (byte) ((terms[i] + 5) | (delta << 5));
+            weight_bytes[i * 2] = weight_bytes[i * 2 + 1] = 48;
+        }
+
+        for (int b = 0; b < blocks; b++)
+        {
+            int [] residuals = new int[block_samples * 2];
+            int [][][] history = new int[num_terms][2][Defines.MAX_TERM];
+            int [][] weights = new int[num_terms][2];
+            int [] samples = new int[num_terms];
+            int crc = -1;
+
+            for (int p = 0; p < num_terms; p++)
+                weights[p][0] = weights[p][1] = WordsUtils.restore_weight(weight_bytes[(num_terms - 1 - p) * 2]);
+
+            for (int i = 0; i < block_samples; i++)
+            {
+                double t = (double) (b * block_samples + i) / 44100;
+                int left = (int) (9000 * Math.sin(2 * Math.PI * 440 * t) + 4000 * Math.sin(2 * Math.PI * 1250 * t)
+                    + random.nextGaussian() * 200);
+                int right = (int) (9000 * Math.sin(2 * Math.PI * 330 * t) + 4000 * Math.sin(2 * Math.PI * 1250 * t)
+                    + random.nextGaussian() * 200);
+
+                crc = (crc * 3 + left) * 3 + right;
+
+                // the decoder's joint stereo and passes, backwards
+
+                for (int ch = 0; ch < 2; ch++)
+                {
+                    int value = ch == 0 ? left - right : right + ((left - right) >> 1);
+
+                    for (int p = num_terms - 1; p >= 0; p--)
+                    {
+                        int [] h = history[p][ch];
+                        int term = terms[num_terms - 1 - p];
+
+                        samples[p] = term == 17 ? 2 * h[0] - h[1] : term == 18 ? (3 * h[0] - h[1]) >> 1 : h[term - 1];
+                        value -= (weights[p][ch] * samples[p] + 512) >> 10;
+                    }
+
+                    residuals[i * 2 + ch] = value;
+
+                    for (int p = 0; p < num_terms; p++)
+                    {
+                        int [] h = history[p][ch];
+                        int output = ((weights[p][ch] * samples[p] + 512) >> 10) + value;
+
+                        if (samples[p] != 0 && value != 0)
+                            weights[p][ch] += (samples[p] ^ value) < 0 ? -delta : delta;
+
+                        System.arraycopy(h, 0, h, 1, Defines.MAX_TERM - 1);
+                        h[0] = value = output;
+                    }
+                }
+            }
+
+            java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+
+            write_metadata(body, Defines.ID_DECORR_TERMS, term_bytes);
+            write_metadata(body, Defines.ID_DECORR_WEIGHTS, weight_bytes);
+            write_metadata(body, Defines.ID_ENTROPY_VARS, entropy.data);
+            write_metadata(body, Defines.ID_WV_BITSTREAM, write_words(residuals, flags, entropy, null));
+
+            byte [] header = header(body.size() + 24, (long) b * block_samples, (long) blocks * block_samples,
+                block_samples, flags);
+
+            java.nio.ByteBuffer.wrap(header, 28, 4).order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(crc);
+            file.write(header, 0, header.length);
+            file.write(body.toByteArray(), 0, body.size());
+        }
+
+        return file.toByteArray();
+    }
+
+    static byte [] header(long ck_size, long block_index, long total_samples, long block_samples, long flags)
+    {
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(32).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+        header.put(new byte [] { 'w', 'v', 'p', 'k' });
+        header.putInt((int) ck_size);
+        header.putShort((short) 0x407);
+        header.putShort((short) 0);
+        header.putInt((int) total_samples);
+        header.putInt((int) block_index);
+        header.putInt((int) block_samples);
+        header.putInt((int) flags);
+        header.putInt(-1);
+
+        return header.array();
+    }
+
+    static void write_metadata(java.io.ByteArrayOutputStream out, int id, byte [] data)
+    {
+        int words = (data.length + 1) / 2;
+
+        if ((data.length & 1) != 0)
+            id |= Defines.ID_ODD_SIZE;
+
+        if (words > 255)
+        {
+            out.write(id | Defines.ID_LARGE);
+            out.write(words);
+            out.write(words >> 8);
+            out.write(words >> 16);
+        }
+        else
+        {
+            out.write(id);
+            out.write(words);
+        }
+
+        out.write(data, 0, data.length);
+
+        if ((data.length & 1) != 0)
+            out.write(0);
+    }
+
+
+    ////////////////////////////// bitstream writer //////////////////////////////
+
+    // Writes the bits of a bitstream in the order the decoder reads them.
+
+    static class BitWriter
+    {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        int acc, count;
+
+        void bit(long bit)
+        {
+            acc |= (int) (bit & 1) << count;
+
+            if (++count == 8)
+            {
+                out.write(acc);
+                acc = count = 0;
+            }
+        }
+
+        void bits(long value, int nbits)
+        {
+            for (int i = 0; i < nbits; i++)
+                bit(value >> i);
+        }
+
+        // The inverse of WordsUtils.read_code().
+
+        void code(long code, long maxcode)
+        {
+            int bitcount = WordsUtils.count_bits(maxcode);
+            long extras = (1L << bitcount) - maxcode - 1;
+
+            if (bitcount == 0)
+                return;
+
+            if (code < extras)
+                bits(code, bitcount - 1);
+            else
+            {
+                bits((code + extras) >> 1, bitcount - 1);
+                bit(code + extras);
+            }
+        }
+
+        // A count of ones, as read by get_words() (with the escape for long runs).
+
+        void ones(long ones_count)
+        {
+            int limit = Math.min((int) ones_count, WordsUtils.LIMIT_ONES);
+
+            bits(-1, limit);
+            bit(0);
+
+            if (ones_count < WordsUtils.LIMIT_ONES)
+                return;
+
+            long escape = ones_count - WordsUtils.LIMIT_ONES;
+            int cbits = escape < 2 ? (int) escape : 64 - Long.numberOfLeadingZeros(escape);
+
+            bits(-1, cbits);
+            bit(0);
+
+            if (escape >= 2)
+                bits(escape, cbits - 1);
+        }
+
+        // The bytes written, padded so that the decoder never reads past them.
+
+        byte [] finish()
+        {
+            while (count != 0)
+                bit(0);
+
+            for (int i = 0; i < 64; i++)
+                out.write(0);
+
+            return out.toByteArray();
+        }
+    }
+
+    // Encode stereo values into a bitstream that get_words() (or, without
+    // hybrid_profile, get_words_lossless()) decodes back, exactly or within the
+    // error limit of the hybrid mode. The words state is followed from the same
+    // metadata as the decoder's, with the decoder's own routines where they
+    // can be shared. The zero runs that come with tiny medians are written as
+    // empty runs.
+
+    static byte [] write_words(int [] values, long flags, WavpackMetadata entropy, WavpackMetadata hybrid)
+    {
+        WavpackStream wps = new WavpackStream();
+        int count = values.length;
+        int [] ks = new int[count];
+        long [] lows = new long[count], highs = new long[count];
+        boolean [] zero_checks = new boolean[count];
+
+        wps.wphdr.flags = flags;
+        WordsUtils.read_entropy_vars(wps, entropy);
+
+        // the medians depend only on the ones counts, so those can all be
+        // found first, which is needed as each count is sent with the next
+
+        for (int i = 0; i < count; i++)
+        {
+            long [] median = wps.w.c[i & 1].median;
+            long magnitude = values[i] < 0 ? ~values[i] : values[i];
+            long low = 0, step = (median[0] >> 4) + 1;
+            int k = 0;
+
+            zero_checks[i] = (wps.w.c[0].median[0] & ~1) == 0 && (wps.w.c[1].median[0] & ~1) == 0;
+
+            if (magnitude < step)
+                median[0] -= ((median[0] + (WordsUtils.DIV0 - 2)) / WordsUtils.DIV0) * 2;
+            else
+            {
+                median[0] += ((median[0] + WordsUtils.DIV0) / WordsUtils.DIV0) * 5;
+                low = step;
+                step = (median[1] >> 4) + 1;
+                k = 1;
+
+                if (magnitude < low + step)
+                    median[1] -= ((median[1] + (WordsUtils.DIV1 - 2)) / WordsUtils.DIV1) * 2;
+                else
+                {
+                    median[1] += ((median[1] + WordsUtils.DIV1) / WordsUtils.DIV1) * 5;
+                    low += step;
+                    step = (median[2] >> 4) + 1;
+                    k = 2 + (int) ((magnitude - low) / step);
+                    low += (k - 2) * step;
+
+                    if (k == 2)
+                        median[2] -= ((median[2] + (WordsUtils.DIV2 - 2)) / WordsUtils.DIV2) * 2;
+                    else
+                        median[2] += ((median[2] + WordsUtils.DIV2) / WordsUtils.DIV2) * 5;
+                }
+            }
+
+            ks[i] = k;
+            lows[i] = low;
+            highs[i] = low + step - 1;
+        }
+
+        BitWriter bw = new BitWriter();
+        int holding_one = 0, holding_zero = 0;
+
+        if (hybrid != null)
+            WordsUtils.read_hybrid_profile(wps, hybrid);
+
+        for (int i = 0; i < count; i++)
+        {
+            entropy_data c = wps.w.c[i & 1];
+            long magnitude = values[i] < 0 ? ~values[i] : values[i];
+            long low = lows[i], high = highs[i], mid = (high + low + 1) >> 1;
+
+            if (holding_zero != 0)
+                holding_zero = 0;
+            else
+            {
+                if (zero_checks[i] && holding_one == 0)
+                    bw.bit(0);
+
+                int next = i + 1 < count && ks[i + 1] > 0 ? 1 : 0;
+
+                bw.ones(2 * (ks[i] - holding_one) + next);
+                holding_one = next;
+                holding_zero = 1 - next;
+            }
+
+            if (hybrid != null && (i & 1) == 0)
+                WordsUtils.update_error_limit(wps.w, flags);
+
+            if (hybrid == null || c.error_limit == 0)
+            {
+                bw.code(magnitude - low, high - low);
+                mid = magnitude;
+            }
+            else
+            {
+                while (high - low > c.error_limit)
+                {
+                    if (magnitude >= mid)
+                    {
+                        bw.bit(1);
+                        mid = (high + (low = mid) + 1) >> 1;
+                    }
+                    else
+                    {
+                        bw.bit(0);
+                        mid = ((high = mid - 1) + low + 1) >> 1;
+                    }
+                }
+            }
+
+            bw.bit(values[i] < 0 ? 1 : 0);
+
+            if ((flags & Defines.HYBRID_BITRATE) != 0)
+                c.slow_level = c.slow_level - ((c.slow_level + WordsUtils.SLO) >> WordsUtils.SLS) + WordsUtils.mylog2(mid);
+        }
+
+        return bw.finish();
+    }
+
+
+    ////////////////////////////// inputs ///////////////////////////////////////
+
+    static WavpackMetadata metadata(int id, byte [] data)
+    {
+        WavpackMetadata wpmd = new WavpackMetadata();
+
+        wpmd.id = (short) id;
+        wpmd.data = data;
+        wpmd.byte_length = data.length;
+
+        return wpmd;
+    }
+
+    // Medians for 16-bit audio at a moderate level, as logs.
+
+    static byte [] entropy_vars()
+    {
+        byte [] vars = new byte[12];
+
+        for (int i = 0; i < 12; i += 2)
+            vars[i + 1] = 0x08;
+
+        return vars;
+    }
+
+    // Residuals as the entropy decoder would leave them: mostly small, with
+    // the odd larger one.
+
+    static int [] residuals(long seed, int count)
+    {
+        java.util.Random random = new java.util.Random(seed);
+        int [] values = new int[count];
+
+        for (int i = 0; i < count; i++)
+            values[i] = (int) (random.nextGaussian() * 300);
+
+        return values;
+    }
+}
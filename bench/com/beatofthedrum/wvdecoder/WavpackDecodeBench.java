@@ -0,0 +1,88 @@
+/*
+** WavpackDecodeBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// Whole files decoded end to end from memory, with one decoder reset onto
+// the file for each operation. By default the file is a synthetic 16-bit
+// stereo one (see WavpackBenchData.synthetic_file()); real files can be
+// measured as well with "-p file=a.wv,b.wv". The time reported is for the
+// whole file, decoded to ints and (decodePcm) to packed PCM in a heap
+// buffer.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackDecodeBench
+{
+    @Param({ "synthetic" })
+    String file;
+
+    WavpackDecoder decoder;
+    java.nio.ByteBuffer input;
+    int [] buffer;
+    java.nio.ByteBuffer pcm;
+
+
+    @Setup
+    public void setup() throws java.io.IOException
+    {
+        byte [] data = file.equals("synthetic") ? WavpackBenchData.synthetic_file(8, 22050)
+            : java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file));
+
+        input = java.nio.ByteBuffer.wrap(data);
+        decoder = WavpackDecoder.open(input);
+
+        WavpackContext wpc = decoder.getContext();
+
+        if (wpc.error)
+            throw new IllegalArgumentException(file + ": " + wpc.error_message);
+
+        buffer = new int[(int) WavPackUtils.WavpackGetBlockSamples(wpc) * WavPackUtils.WavpackGetReducedChannels(wpc)];
+        pcm = java.nio.ByteBuffer.allocate(buffer.length * WavPackUtils.WavpackGetBytesPerSample(wpc));
+    }
+
+    @Benchmark
+    public long decode()
+    {
+        long total = 0, samples;
+
+        decoder.reset(input);
+
+        while ((samples = decoder.unpackBlock(buffer)) > 0)
+            total += samples + buffer[0];
+
+        return total;
+    }
+
+    @Benchmark
+    public long decodePcm()
+    {
+        long total = 0, samples;
+
+        decoder.reset(input);
+
+        do
+        {
+            pcm.clear();
+            samples = decoder.unpackPcmSamples(pcm, buffer.length);
+            total += samples + pcm.get(0);
+        }
+        while (samples > 0);
+
+        return total;
+    }
+}
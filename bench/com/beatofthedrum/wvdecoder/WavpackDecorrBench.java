@@ -0,0 +1,161 @@
+/*
+** WavpackDecorrBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// Every decorrelation pass for each kind of term, and the last pass of a
+// block fused with the steps after it. Each pass is run over the same
+// residuals (small random values, as the entropy decoder produces for real
+// audio) from the same starting state, which is restored at the start of
+// each operation. The "cont" passes carry on from 8 samples already in the
+// buffer, as unpack_samples() uses them. The nested classes are the mono
+// and final passes, which take fewer terms.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackDecorrBench
+{
+    static final int SAMPLES = WavpackBenchData.SAMPLES;
+
+    @Param({ "decorr_stereo_pass", "decorr_stereo_pass_24bit", "decorr_stereo_pass_cont",
+        "decorr_stereo_pass_cont_24bit" })
+    String pass;
+
+    @Param({ "1", "2", "8", "17", "18", "-1", "-2", "-3" })
+    int term;
+
+    int [] residuals;
+    int [] buffer;
+    decorr_pass start;
+    decorr_pass dpp = new decorr_pass();
+
+
+    @Setup
+    public void setup()
+    {
+        residuals = WavpackBenchData.residuals(7 + term, SAMPLES * 2);
+        buffer = new int[residuals.length];
+        start = WavpackBenchData.make_pass(term);
+    }
+
+    @Benchmark
+    public long stereoPass()
+    {
+        System.arraycopy(residuals, 0, buffer, 0, buffer.length);
+        WavpackBenchData.copy_pass(start, dpp);
+
+        if (pass.equals("decorr_stereo_pass"))
+            UnpackUtils.decorr_stereo_pass(dpp, buffer, SAMPLES, 0);
+        else if (pass.equals("decorr_stereo_pass_24bit"))
+            UnpackUtils.decorr_stereo_pass_24bit(dpp, buffer, SAMPLES, 0);
+        else if (pass.equals("decorr_stereo_pass_cont"))
+            UnpackUtils.decorr_stereo_pass_cont(dpp, buffer, SAMPLES - 8, 16);
+        else
+            UnpackUtils.decorr_stereo_pass_cont_24bit(dpp, buffer, SAMPLES - 8, 16);
+
+        return buffer[buffer.length - 1] + dpp.weight_A;
+    }
+
+
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(2)
+    @State(Scope.Thread)
+    public static class Mono
+    {
+        @Param({ "decorr_mono_pass", "decorr_mono_pass_24bit" })
+        String pass;
+
+        @Param({ "1", "2", "8", "17", "18" })
+        int term;
+
+        int [] residuals;
+        int [] buffer;
+        decorr_pass start;
+        decorr_pass dpp = new decorr_pass();
+
+        @Setup
+        public void setup()
+        {
+            residuals = WavpackBenchData.residuals(7 + term, SAMPLES * 2);
+            buffer = new int[residuals.length];
+            start = WavpackBenchData.make_pass(term);
+        }
+
+        @Benchmark
+        public long monoPass()
+        {
+            System.arraycopy(residuals, 0, buffer, 0, buffer.length);
+            WavpackBenchData.copy_pass(start, dpp);
+
+            if (pass.equals("decorr_mono_pass"))
+                UnpackUtils.decorr_mono_pass(dpp, buffer, SAMPLES, 0);
+            else
+                UnpackUtils.decorr_mono_pass_24bit(dpp, buffer, SAMPLES, 0);
+
+            return buffer[buffer.length - 1] + dpp.weight_A;
+        }
+    }
+
+    // The last pass of a 16-bit joint stereo or mono block with no shift,
+    // fused with joint stereo, the CRC and the final shift.
+
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(2)
+    @State(Scope.Thread)
+    public static class Final
+    {
+        @Param({ "true", "false" })
+        boolean stereo;
+
+        @Param({ "17", "18" })
+        int term;
+
+        WavpackStream wps = new WavpackStream();
+        int [] residuals;
+        int [] buffer;
+        decorr_pass start;
+        decorr_pass dpp = new decorr_pass();
+
+        @Setup
+        public void setup()
+        {
+            residuals = WavpackBenchData.residuals(11 + term, SAMPLES * 2);
+            buffer = new int[residuals.length];
+            start = WavpackBenchData.make_pass(term);
+            wps.wphdr.flags = 1 | (stereo ? Defines.JOINT_STEREO : Defines.MONO_FLAG);
+        }
+
+        @Benchmark
+        public long finalPass()
+        {
+            System.arraycopy(residuals, 0, buffer, 0, buffer.length);
+            WavpackBenchData.copy_pass(start, dpp);
+            wps.crc = 0xffffffffL;
+
+            if (stereo)
+                return UnpackUtils.final_stereo_pass(wps, dpp, buffer, SAMPLES, 0, false, Integer.MAX_VALUE, null) + wps.crc;
+
+            return UnpackUtils.final_mono_pass(wps, dpp, buffer, SAMPLES, 0, false, Integer.MAX_VALUE, null) + wps.crc;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+** WavpackFixupBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// fixup_samples() for a lossless file with a shift, a hybrid file (which is
+// clipped) and a 32-bit integer file with zeros to restore. The values are
+// scaled up so that clipping does happen.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackFixupBench
+{
+    static final int SAMPLES = WavpackBenchData.SAMPLES;
+
+    @Param({ "lossless_shift", "hybrid_clip", "int32_zeros" })
+    String kind;
+
+    WavpackStream wps = new WavpackStream();
+    int [] values;
+    int [] buffer;
+
+
+    @Setup
+    public void setup()
+    {
+        values = WavpackBenchData.residuals(5, SAMPLES * 2);
+        buffer = new int[values.length];
+
+        if (kind.equals("lossless_shift"))
+            wps.wphdr.flags = 1 | (4L << Defines.SHIFT_LSB);
+        else if (kind.equals("hybrid_clip"))
+            wps.wphdr.flags = 1 | Defines.HYBRID_FLAG;
+        else
+        {
+            wps.wphdr.flags = 3 | Defines.INT32_DATA;
+            wps.int32_zeros = 8;
+        }
+
+        for (int i = 0; i < values.length; i++)
+            values[i] *= 32;
+    }
+
+    @Benchmark
+    public long fixupSamples()
+    {
+        System.arraycopy(values, 0, buffer, 0, buffer.length);
+        UnpackUtils.fixup_samples(wps, buffer, SAMPLES, 0, false, null);
+
+        return buffer[buffer.length - 1];
+    }
+}
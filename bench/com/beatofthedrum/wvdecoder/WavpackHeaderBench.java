@@ -0,0 +1,73 @@
+/*
+** WavpackHeaderBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// read_next_header(): a thousand headers, each followed by some bytes that
+// could not start one, are scanned from a buffer and from a stream. The
+// time reported is for all thousand.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackHeaderBench
+{
+    static final int HEADERS = 1000;
+
+    byte [] data = new byte[HEADERS * 64];
+    WavpackHeader wphdr = new WavpackHeader();
+    java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(data);
+
+
+    @Setup
+    public void setup()
+    {
+        java.util.Random random = new java.util.Random(3);
+
+        for (int i = 0; i < HEADERS; i++)
+        {
+            System.arraycopy(WavpackBenchData.header(1000, i * 1000L, HEADERS * 1000L, 1000, 0), 0, data, i * 64, 32);
+
+            for (int j = 32; j < 64; j++)
+                data[i * 64 + j] = (byte) random.nextInt('w');
+        }
+    }
+
+    @Benchmark
+    public long readNextHeaderBuffer()
+    {
+        long count = 0;
+
+        buffer.position(0);
+
+        while (WavPackUtils.read_next_header(buffer, wphdr).status == 0)
+            count += wphdr.block_index;
+
+        return count;
+    }
+
+    @Benchmark
+    public long readNextHeaderStream()
+    {
+        long count = 0;
+        java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(data));
+
+        while (WavPackUtils.read_next_header(in, wphdr).status == 0)
+            count += wphdr.block_index;
+
+        return count;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+** WavpackKernelBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// Each of the SampleKernels on a block's worth of stereo values: the mute
+// limit and crc loop of unpack_samples() with and without joint stereo, the
+// shifting and clipping of fixup_samples() and float_values() and the
+// stores into 16-, 24- and 32-bit PCM, floats and shorts. Which kernels are
+// measured depends on the JVM (see SampleKernels.load()): the Vector API
+// ones need
+//
+//   java -jar bench/target/benchmarks.jar Kernel -jvmArgsAppend "--add-modules jdk.incubator.vector"
+//
+// and adding -Dcom.beatofthedrum.wvdecoder.vector=false to that measures the
+// scalar ones under the same flags.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackKernelBench
+{
+    static final int SAMPLES = WavpackBenchData.SAMPLES;
+
+    @Param({ "stereo_crc", "joint_stereo_crc", "shift", "shift_ones", "shift_dups", "clip_shift", "float_values",
+        "pcm16", "pcm24", "pcm32", "floats", "shorts" })
+    String kernel;
+
+    SampleKernels kernels = SampleKernels.kernels;
+    WavpackStream wps = new WavpackStream();
+    int [] values;
+    int [] buffer;
+    java.nio.ByteBuffer pcm;
+    float [] floats = new float[SAMPLES * 2];
+    short [] shorts = new short[SAMPLES * 2];
+
+
+    @Setup
+    public void setup()
+    {
+        values = WavpackBenchData.residuals(9, SAMPLES * 2);
+        buffer = new int[values.length];
+        pcm = java.nio.ByteBuffer.allocate(SAMPLES * 2 * 4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+        for (int i = 0; i < values.length; i++)
+            values[i] *= 32;
+
+        System.out.println("\n" + kernels.describe() + " kernels");
+    }
+
+    @Benchmark
+    public long run()
+    {
+        System.arraycopy(values, 0, buffer, 0, buffer.length);
+
+        switch (kernel)
+        {
+            case "stereo_crc":
+                return kernels.stereo_crc(wps, buffer, 0, SAMPLES, Integer.MAX_VALUE, false) + wps.crc;
+
+            case "joint_stereo_crc":
+                return kernels.stereo_crc(wps, buffer, 0, SAMPLES, Integer.MAX_VALUE, true) + wps.crc;
+
+            case "shift":
+                kernels.shift(buffer, 0, buffer.length, 8);
+                return buffer[buffer.length - 1];
+
+            case "shift_ones":
+                kernels.shift_ones(buffer, 0, buffer.length, 8);
+                return buffer[buffer.length - 1];
+
+            case "shift_dups":
+                kernels.shift_dups(buffer, 0, buffer.length, 8);
+                return buffer[buffer.length - 1];
+
+            case "clip_shift":
+                kernels.clip_shift(buffer, 0, buffer.length, -32768, 32767, 4);
+                return buffer[buffer.length - 1];
+
+            case "float_values":
+                kernels.shift_clip(buffer, 0, buffer.length, 3, -8388608, 8388607);
+                return buffer[buffer.length - 1];
+
+            case "pcm16":
+                kernels.pack(buffer, 0, buffer.length, -32768, 32767, 0, pcm, 0, 2);
+                return pcm.get(1);
+
+            case "pcm24":
+                kernels.pack(buffer, 0, buffer.length, -8388608, 8388607, 0, pcm, 0, 3);
+                return pcm.get(1);
+
+            case "pcm32":
+                kernels.pack(buffer, 0, buffer.length, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, pcm, 0, 4);
+                return pcm.get(1);
+
+            case "floats":
+                kernels.to_floats(buffer, 0, buffer.length, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 1.0f / 32768, floats, 0);
+                return (long) floats[1];
+
+            default:
+                kernels.to_shorts(buffer, 0, buffer.length, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 8, shorts, 0);
+                return shorts[1];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+** WavpackWordsBench.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+import org.openjdk.jmh.annotations.*;
+
+// The entropy decoder, for lossless, hybrid and hybrid bitrate data. The
+// bitstreams are made by write_words() from residuals like those of real
+// audio. Each operation starts the words state afresh and decodes SAMPLES
+// stereo samples from the start of the bitstream.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WavpackWordsBench
+{
+    @Param({ "lossless", "hybrid", "hybrid_bitrate" })
+    String mode;
+
+    WavpackStream wps = new WavpackStream();
+    WavpackMetadata entropy;
+    WavpackMetadata hybrid;
+    long flags;
+    byte [] bits;
+    int [] buffer = new int[WavpackBenchData.SAMPLES * 2];
+
+
+    @Setup
+    public void setup()
+    {
+        flags = 1 | Defines.JOINT_STEREO;
+        entropy = WavpackBenchData.metadata(Defines.ID_ENTROPY_VARS, WavpackBenchData.entropy_vars());
+
+        if (mode.equals("hybrid"))
+        {
+            flags |= Defines.HYBRID_FLAG;
+            hybrid = WavpackBenchData.metadata(Defines.ID_HYBRID_PROFILE, new byte [] { 0x00, 0x05, 0x00, 0x05 });
+        }
+        else if (mode.equals("hybrid_bitrate"))
+        {
+            flags |= Defines.HYBRID_FLAG | Defines.HYBRID_BITRATE;
+            hybrid = WavpackBenchData.metadata(Defines.ID_HYBRID_PROFILE,
+                new byte [] { 0x00, 0x09, 0x00, 0x09, 0x00, 0x02, 0x00, 0x02, 0x10, 0x00, 0x10, 0x00 });
+        }
+
+        bits = WavpackBenchData.write_words(WavpackBenchData.residuals(42, WavpackBenchData.SAMPLES * 2),
+            flags, entropy, hybrid);
+        wps.wphdr.flags = flags;
+
+        // running off the end of the bits would overwrite them with ones
+
+        if (getWords() != WavpackBenchData.SAMPLES + buffer[WavpackBenchData.SAMPLES] || wps.wvbits.error != 0)
+            throw new IllegalStateException(mode + ": bitstream does not decode");
+    }
+
+    @Benchmark
+    public long getWords()
+    {
+        WordsUtils.read_entropy_vars(wps, entropy);
+
+        if (hybrid != null)
+            WordsUtils.read_hybrid_profile(wps, hybrid);
+
+        BitsUtils.bs_open_read(wps.wvbits, bits, 0, bits.length, null, 0, 0);
+
+        if (hybrid == null)
+            return WordsUtils.get_words_lossless(WavpackBenchData.SAMPLES, flags, wps.w, wps.wvbits, buffer, 0)
+                + buffer[WavpackBenchData.SAMPLES];
+
+        return WordsUtils.get_words(WavpackBenchData.SAMPLES, flags, wps.w, wps.wvbits, buffer, 0, null, null)
+            + buffer[WavpackBenchData.SAMPLES];
+    }
+}
@@ -13,96 +13,184 @@ package com.beatofthedrum.wvdecoder;
 
 class BitsUtils
 {
-    static void getbit(Bitstream bs)
+    // The bitstream is read through a 64-bit reservoir (sr) holding bc bits,
+    // least significant bit first. The reservoir is topped up a whole byte at
+    // a time to at least 57 bits, so most reads are just a mask and a shift,
+    // and runs of ones are counted with Long.numberOfTrailingZeros() instead
+    // of a bit at a time. Bits above bc in sr are always zero.
+
+    static int getbit(Bitstream bs)
     {
-        if (bs.bc > 0)
-        {
-            bs.bc--;
-        }
-        else
-        {
-            bs.ptr++;
-            bs.buf_index++;
-            bs.bc = 7;
+        int bit;
 
-            if (bs.ptr == bs.end)
-            {
-                // wrap call here
-                bs_read(bs);
-            }
-            bs.sr =  (bs.buf[bs.buf_index] & 0xff);
-        }
+        if (bs.bc == 0)
+            bs_fill(bs);
 
-        bs.bitval =  (int)(bs.sr & 1);
-        bs.sr = bs.sr >> 1;
+        bit = (int) bs.sr & 1;
+        bs.sr >>>= 1;
+        bs.bc--;
+
+        return bit;
     }
 
+    // Return the next nbits (0 to 32) bits as an unsigned value.
+
     static long getbits(int nbits, Bitstream bs)
     {
-        int uns_buf;
-        final long value;
+        long value;
+
+        if (bs.bc < nbits)
+            bs_fill(bs);
+
+        value = bs.sr & ((1L << nbits) - 1);
+        bs.sr >>>= nbits;
+        bs.bc -= nbits;
+
+        return value;
+    }
+
+    // Count the consecutive one bits at the read position, stopping at limit.
+    // The ones are consumed along with the bit that ends the run (a zero, or
+    // whatever follows when the limit is reached), exactly as if the bits
+    // were read one at a time until a zero was seen or limit ones counted.
+
+    static int getones(Bitstream bs, int limit)
+    {
+        int count = 0;
 
-        while ((nbits) > bs.bc)
+        while (true)
         {
-            bs.ptr++;
-            bs.buf_index++;
+            int ones;
 
-            if (bs.ptr == bs.end)
+            if (bs.bc == 0)
+                bs_fill(bs);
+
+            ones = Long.numberOfTrailingZeros(~bs.sr);
+
+            if (count + ones >= limit)
             {
-                bs_read(bs);
+                skipbits(bs, limit - count);
+                getbit(bs);
+                return limit;
             }
-            uns_buf = (bs.buf[bs.buf_index] & 0xff);
-            bs.sr = bs.sr | (uns_buf << bs.bc); // values in buffer must be unsigned
 
-            bs.sr = bs.sr & 0xFFFFFFFFL;        // sr is an unsigned 32 bit variable
-            
-            bs.bc += 8;
+            if (ones < bs.bc)
+            {
+                skipbits(bs, ones + 1);
+                return count + ones;
+            }
+
+            // the whole reservoir was ones
+
+            count += ones;
+            bs.sr = 0;
+            bs.bc = 0;
         }
+    }
+
+    // Drop nbits bits that are already in the reservoir.
+
+    static void skipbits(Bitstream bs, int nbits)
+    {
+        bs.sr = (nbits == 64) ? 0 : bs.sr >>> nbits;
+        bs.bc -= nbits;
+    }
+
+    // Top up the reservoir with as many whole bytes as will fit.
 
-        value = bs.sr;
+    static void bs_fill(Bitstream bs)
+    {
+        int bytes = (64 - bs.bc) >> 3;
 
-        if (bs.bc > 32)
+        if (bs.end - bs.buf_index >= bytes)
         {
-            bs.bc -= (nbits);
-            bs.sr = (bs.buf[bs.buf_index] & 0xff) >> (8 - bs.bc);
+            // the usual case, all the bytes are in the buffer
+
+            int idx = bs.buf_index;
+            long sr = bs.sr;
+            int bc = bs.bc;
+
+            if (bs.mbuf != null)
+            {
+                for (int i = 0; i < bytes; i++, bc += 8)
+                    sr |= (long) (bs.mbuf.get(idx++) & 0xff) << bc;
+            }
+            else
+            {
+                for (int i = 0; i < bytes; i++, bc += 8)
+                    sr |= (long) (bs.buf[idx++] & 0xff) << bc;
+            }
+
+            bs.buf_index = idx;
+            bs.sr = sr;
+            bs.bc = bc;
+            return;
         }
-        else
+
+        while (bs.bc <= 56)
         {
-            bs.bc -= (nbits);
-            bs.sr >>= (nbits);
+            if (bs.buf_index == bs.end)
+                bs_read(bs);
+
+            bs.sr |= (long) read_byte(bs) << bs.bc;
+            bs.buf_index++;
+            bs.bc += 8;
         }
+    }
+
+    // Return the byte at the current index, from the mapped buffer if the
+    // bitstream is reading one.
+
+    static int read_byte(Bitstream bs)
+    {
+        if (bs.mbuf != null)
+            return bs.mbuf.get(bs.buf_index) & 0xff;
+
+        return bs.buf[bs.buf_index] & 0xff;
+    }
+
+    // Open the bitstream bs to read the bytes from start up to (but not
+    // including) end of the specified buffer in place. Once these are used up
+    // it behaves like the end of a file bitstream, returning all ones and
+    // setting the error flag.
 
-        return (value);
+    static void bs_open_mapped(Bitstream bs, java.nio.ByteBuffer mbuf, int start, int end, byte [] stream)
+    {
+        bs_open_read(bs, stream, start, end, null, 0, 0);
+        bs.mbuf = mbuf;
     }
 
-    static Bitstream bs_open_read(byte [] stream, int buffer_start, int buffer_end, java.io.DataInputStream file,
+    // Open the bitstream bs on the bytes from buffer_start to buffer_end of
+    // the stream array or, if passed is set, on file_bytes bytes of the file
+    // that are read into the array (which is then initially empty) as needed.
+    // All the previous state of bs is cleared, so the same Bitstream can be
+    // used for every block.
+
+    static void bs_open_read(Bitstream bs, byte [] stream, int buffer_start, int buffer_end, java.io.DataInputStream file,
         long file_bytes, int passed)
     {
         //   CLEAR (*bs);
-        Bitstream bs = new Bitstream();
-
         bs.buf = stream;
         bs.buf_index = buffer_start;
         bs.end = buffer_end;
         bs.sr = 0;
         bs.bc = 0;
+        bs.error = 0;
+        bs.mbuf = null;
+        bs.file = null;
+        bs.file_bytes = 0;
 
         if (passed != 0)
         {
-            bs.ptr = (bs.end - 1);
+            bs.buf_index = bs.end;
             bs.file_bytes = file_bytes;
             bs.file = file;
         }
-        else
-        {
-            /* Strange to set an index to -1, but the very first call to getbit will iterate this */
-            bs.buf_index = -1;
-            bs.ptr = -1;
-        }
-
-        return bs;
     }
 
+    // Refill the buffer from the file. At the end of the data the buffer is
+    // filled with ones and the error flag is set.
+
     static void bs_read(Bitstream bs)
     {
         if (bs.file_bytes > 0)
@@ -117,7 +205,6 @@ class BitsUtils
             try
             {
                 bytes_read = bs.file.read(bs.buf, 0, (int) bytes_to_read);
-                bs.buf_index = 0;
             }
             catch (Exception e)
             {
@@ -136,20 +223,22 @@ class BitsUtils
                 {
                     bs.buf[i] = -1;
                 }
+                bs.end = Defines.BITSTREAM_BUFFER_SIZE;
                 bs.error = 1;
             }
         }
         else
         {
+            bs.mbuf = null;
             bs.error = 1;
            
             for (int i = 0; i < Defines.BITSTREAM_BUFFER_SIZE; i++)
             {
                 bs.buf[i] = -1;
             }
+            bs.end = Defines.BITSTREAM_BUFFER_SIZE;
         }
 
-        bs.ptr = 0;
         bs.buf_index = 0;
     }
 }
\ No newline at end of file
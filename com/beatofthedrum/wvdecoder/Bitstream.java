@@ -13,12 +13,13 @@ package com.beatofthedrum.wvdecoder;
 
 class Bitstream
 {
-    int end, ptr;	// was uchar in c
+    long sr;	// bit reservoir, the next bit to read is the lsb
+    int bc;		// number of valid bits in sr, 0 to 64
+    int end;	// source bytes are buf[buf_index] up to buf[end - 1]
     long file_bytes;	// was uint32_t in C
-    long sr;
-    int error, bc;
+    int error;
     java.io.DataInputStream file;
-    int bitval = 0;
+    java.nio.ByteBuffer mbuf;	// read directly instead of buf when set
     byte[] buf = new byte[Defines.BITSTREAM_BUFFER_SIZE];
     int buf_index = 0;
 }
\ No newline at end of file
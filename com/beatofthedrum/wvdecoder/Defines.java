@@ -19,6 +19,7 @@ public class Defines
     public static final int SAMPLE_BUFFER_SIZE = 256;
     
     static final int BITSTREAM_BUFFER_SIZE = 1024;
+    static final int OUTPUT_SAMPLES = 2048;	// complete samples unpacked at a time into sample_buffer
     static int FALSE = 0;
     static int TRUE = 1;
 
@@ -40,6 +41,8 @@ public class Defines
 
     static int FINAL_BLOCK = 0x1000;  // final block of multichannel segment
 
+    static int NEW_SHAPING = 0x20000000;  // use IIR filter for negative shaping
+
 
     static int MIN_STREAM_VERS = 0x402;       // lowest stream version we'll decode
     static int MAX_STREAM_VERS = 0x410;       // highest stream version we'll decode
@@ -120,12 +123,14 @@ public class Defines
     static long CONFIG_MD5_CHECKSUM    = 0x8000000; // compute & store MD5 signature
     static long CONFIG_OPTIMIZE_MONO   = 0x80000000; // optimize for mono streams posing as stereo
 
-    static int MODE_WVC        = 0x1;
-    static int MODE_LOSSLESS   = 0x2;
-    static int MODE_HYBRID     = 0x4;
-    static int MODE_FLOAT      = 0x8;
-    static int MODE_VALID_TAG  = 0x10;
-    static int MODE_HIGH       = 0x20;
-    static int MODE_FAST       = 0x40;
+    // the bits of WavPackUtils.WavpackGetMode()
+
+    public static final int MODE_WVC        = 0x1;
+    public static final int MODE_LOSSLESS   = 0x2;
+    public static final int MODE_HYBRID     = 0x4;
+    public static final int MODE_FLOAT      = 0x8;
+    public static final int MODE_VALID_TAG  = 0x10;
+    public static final int MODE_HIGH       = 0x20;
+    public static final int MODE_FAST       = 0x40;
 
 }
\ No newline at end of file
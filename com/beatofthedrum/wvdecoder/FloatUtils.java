@@ -40,29 +40,167 @@ class FloatUtils
     static void float_values (WavpackStream wps, int[] values, long num_values, int bufferStartPos)
     {
         int shift = wps.float_max_exp - wps.float_norm_exp + wps.float_shift;
-        int value_counter = bufferStartPos;
 
         if (shift > 32)
             shift = 32;
         else if (shift < -32)
             shift = -32;
 
-        while (num_values>0) 
+        SampleKernels.kernels.shift_clip(values, bufferStartPos, bufferStartPos + (int) num_values, shift, -8388608, 8388607);
+    }
+
+    // Rebuild the original 32-bit IEEE floats from the integer values unpacked
+    // from a float block, leaving the raw bits of each float (as used by
+    // Float.intBitsToFloat()) in place of the value. Unlike float_values()
+    // nothing is scaled or clipped. What the integers could not hold (the
+    // low bits of the mantissa, values too small for them, infinities and
+    // NaNs) comes from the "wvx" bitstream when the block has one, and the
+    // extended crc is computed along the way; without it the floats are
+    // rebuilt as well as the integers allow. If out is not null the floats
+    // are stored there as they are made, rather than back into values.
+
+    static void float_bits (WavpackStream wps, int[] values, long num_values, int bufferStartPos, WavpackOutput out)
+    {
+        int flags = wps.float_flags & 0xff;
+        int float_shift = wps.float_shift & 0xff;
+        int max_exp = wps.float_max_exp & 0xff;
+        int end = bufferStartPos + (int) num_values;
+
+        if (!wps.wvx_open)
         {
-            if (shift > 0)
-                values[value_counter] <<= shift;
-            else if (shift < 0)
-                values[value_counter] >>= -shift;
-
-            if (values[value_counter] > 8388607L)
-                values[value_counter] = (int)8388607L;
-            else if (values[value_counter] < -8388608L)
-                values[value_counter] = (int)-8388608L;
-
-            value_counter++;
-            num_values--;
+            for (int q = bufferStartPos; q < end; q++)
+            {
+                int value = values[q];
+                int outval = 0;
+
+                if (value != 0)
+                {
+                    int exp = max_exp;
+
+                    value <<= float_shift;
+
+                    if (value < 0)
+                    {
+                        value = -value;
+                        outval = 0x80000000;
+                    }
+
+                    if (value >= 0x1000000)
+                    {
+                        while ((value & 0xf000000) != 0)
+                        {
+                            value >>= 1;
+                            ++exp;
+                        }
+                    }
+                    else if (exp != 0)
+                    {
+                        int shift_count = 0;
+
+                        while ((value & 0x800000) == 0 && --exp != 0)
+                        {
+                            shift_count++;
+                            value <<= 1;
+                        }
+
+                        if (shift_count != 0 && (flags & Defines.FLOAT_SHIFT_ONES) != 0)
+                            value |= (1 << shift_count) - 1;
+                    }
+
+                    outval |= (value & 0x7fffff) | (exp & 0xff) << 23;
+                }
+
+                if (out == null)
+                    values[q] = outval;
+                else
+                    out.put(out.index + q - bufferStartPos, outval);
+            }
+
+            return;
+        }
+
+        Bitstream bs = wps.wvxbits;
+        int crc = (int) wps.crc_x;
+
+        wps.wvx_used = true;
+
+        for (int q = bufferStartPos; q < end; q++)
+        {
+            int value = values[q];
+            int outval = 0;
+
+            if (value != 0)
+            {
+                int exp = max_exp;
+
+                value <<= float_shift;
+
+                if (value < 0)
+                {
+                    value = -value;
+                    outval = 0x80000000;
+                }
+
+                if (value == 0x1000000)
+                {
+                    // infinity, or a NaN with its mantissa sent
+
+                    if (BitsUtils.getbit(bs) != 0)
+                        outval |= (int) BitsUtils.getbits(23, bs);
+
+                    outval |= 0xff << 23;
+                }
+                else
+                {
+                    int shift_count = 0;
+
+                    if (exp != 0)
+                    {
+                        while ((value & 0x800000) == 0 && --exp != 0)
+                        {
+                            shift_count++;
+                            value <<= 1;
+                        }
+                    }
+
+                    if (shift_count != 0)
+                    {
+                        if ((flags & Defines.FLOAT_SHIFT_ONES) != 0
+                            || ((flags & Defines.FLOAT_SHIFT_SAME) != 0 && BitsUtils.getbit(bs) != 0))
+                            value |= (1 << shift_count) - 1;
+                        else if ((flags & Defines.FLOAT_SHIFT_SENT) != 0)
+                            value |= (int) BitsUtils.getbits(shift_count, bs) & ((1 << shift_count) - 1);
+                    }
+
+                    outval |= (value & 0x7fffff) | (exp & 0xff) << 23;
+                }
+            }
+            else if ((flags & Defines.FLOAT_ZEROS_SENT) != 0)
+            {
+                // a value too small for the integers, or a negative zero
+
+                if (BitsUtils.getbit(bs) != 0)
+                {
+                    outval = (int) BitsUtils.getbits(23, bs);
+
+                    if (max_exp >= 25)
+                        outval |= (int) BitsUtils.getbits(8, bs) << 23;
+
+                    outval |= BitsUtils.getbit(bs) << 31;
+                }
+                else if ((flags & Defines.FLOAT_NEG_ZEROS) != 0)
+                    outval = BitsUtils.getbit(bs) << 31;
+            }
+
+            crc = crc * 27 + (outval & 0x7fffff) * 9 + (outval >>> 23 & 0xff) * 3 + (outval >>> 31);
+
+            if (out == null)
+                values[q] = outval;
+            else
+                out.put(out.index + q - bufferStartPos, outval);
         }
 
+        wps.crc_x = crc;
     }
 
-}
+}
\ No newline at end of file
@@ -12,47 +12,40 @@
 package com.beatofthedrum.wvdecoder;
 
 class MetadataUtils {
-	static int read_metadata_buff(WavpackContext wpc, WavpackMetadata wpmd) {
-		long bytes_to_read;
-		short tchar;
+	// Read the next metadata sub-block of the block framed in wpc.block (see
+	// WavPackUtils.frame_block()). Small metadata is copied to read_buffer with
+	// one bulk get and larger metadata is just skipped. The audio bitstream is
+	// left where it is for init_wv_bitstream() to read in place (and the "wvx"
+	// bitstream for init_wvx_bitstream()).
 
+	static int read_metadata_buff(WavpackContext wpc, WavpackMetadata wpmd) {
 		if (wpmd.bytecount >= wpc.stream.wphdr.ckSize) {
 			// we have read all the data in this block
 			return Defines.FALSE;
 		}
 
-		try {
-			wpmd.id = (short) wpc.infile.readUnsignedByte();
-			tchar = (short) wpc.infile.readUnsignedByte();
-		} catch (Exception e) {
+		java.nio.ByteBuffer buffer = wpc.block;
+		int bytes_to_read;
+
+		if (buffer.remaining() < 2) {
 			wpmd.status = 1;
 			return Defines.FALSE;
 		}
 
+		wpmd.id = (short) (buffer.get() & 0xff);
+		wpmd.byte_length = (buffer.get() & 0xff) << 1;
 		wpmd.bytecount += 2;
 
-		wpmd.byte_length = tchar << 1;
-
 		if ((wpmd.id & Defines.ID_LARGE) != 0) {
 			wpmd.id &= ~Defines.ID_LARGE;
 
-			try {
-				tchar = (short) wpc.infile.readUnsignedByte();
-			} catch (Exception e) {
-				wpmd.status = 1;
-				return Defines.FALSE;
-			}
-
-			wpmd.byte_length += (int) tchar << 9;
-
-			try {
-				tchar = (short) wpc.infile.readUnsignedByte();
-			} catch (Exception e) {
+			if (buffer.remaining() < 2) {
 				wpmd.status = 1;
 				return Defines.FALSE;
 			}
 
-			wpmd.byte_length += (int) tchar << 17;
+			wpmd.byte_length += (buffer.get() & 0xff) << 9;
+			wpmd.byte_length += (buffer.get() & 0xff) << 17;
 			wpmd.bytecount += 2;
 		}
 
@@ -61,7 +54,8 @@ class MetadataUtils {
 			wpmd.byte_length--;
 		}
 
-		if (wpmd.byte_length == 0 || wpmd.id == Defines.ID_WV_BITSTREAM) {
+		if (wpmd.byte_length == 0 || wpmd.id == Defines.ID_WV_BITSTREAM
+				|| wpmd.id == Defines.ID_WVX_BITSTREAM) {
 			wpmd.hasdata = Defines.FALSE;
 			return Defines.TRUE;
 		}
@@ -70,43 +64,21 @@ class MetadataUtils {
 
 		wpmd.bytecount += bytes_to_read;
 
-		if (bytes_to_read > wpc.read_buffer.length) {
-			int bytes_read;
+		if (bytes_to_read > buffer.remaining()) {
+			buffer.position(buffer.limit());
 			wpmd.hasdata = Defines.FALSE;
+			return Defines.FALSE;
+		}
 
-			while (bytes_to_read > wpc.read_buffer.length) {
-				try {
-					bytes_read = wpc.infile.read(wpc.read_buffer, 0,
-							wpc.read_buffer.length);
-					if (bytes_read != wpc.read_buffer.length) {
-						return Defines.FALSE;
-					}
-				} catch (Exception e) {
-					return Defines.FALSE;
-				}
-				bytes_to_read -= wpc.read_buffer.length;
-			}
+		if (bytes_to_read > wpc.read_buffer.length) {
+			buffer.position(buffer.position() + bytes_to_read);
+			wpmd.hasdata = Defines.FALSE;
 		} else {
+			buffer.get(wpc.read_buffer, 0, bytes_to_read);
 			wpmd.hasdata = Defines.TRUE;
 			wpmd.data = wpc.read_buffer;
 		}
 
-		if (bytes_to_read != 0) {
-			int bytes_read;
-
-			try {
-				bytes_read = wpc.infile.read(wpc.read_buffer, 0,
-						(int) bytes_to_read);
-				if (bytes_read != (int) bytes_to_read) {
-					wpmd.hasdata = Defines.FALSE;
-					return Defines.FALSE;
-				}
-			} catch (Exception e) {
-				wpmd.hasdata = Defines.FALSE;
-				return Defines.FALSE;
-			}
-		}
-
 		return Defines.TRUE;
 	}
 
@@ -162,9 +134,15 @@ class MetadataUtils {
 			return UnpackUtils.init_wv_bitstream(wpc, wpmd);
 		}
 
-		case Defines.ID_SHAPING_WEIGHTS:
-		case Defines.ID_WVC_BITSTREAM:
+		case Defines.ID_SHAPING_WEIGHTS: {
+			return UnpackUtils.read_shaping_info(wps, wpmd);
+		}
+
 		case Defines.ID_WVX_BITSTREAM: {
+			return UnpackUtils.init_wvx_bitstream(wpc, wpmd);
+		}
+
+		case Defines.ID_WVC_BITSTREAM: {
 			return Defines.TRUE;
 		}
 
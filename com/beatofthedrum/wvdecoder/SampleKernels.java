@@ -0,0 +1,245 @@
+/*
+** SampleKernels.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// The element-wise loops that follow the entropy decoding and decorrelation:
+// the shifting and clipping of fixup_samples() and float_values(), the joint
+// stereo, mute limit and crc loops of unpack_samples() and the conversions
+// made by WavpackOutput.store(). These are plain scalar loops. On Java 17 or
+// later, run with "--add-modules jdk.incubator.vector", the multi-release jar
+// supplies VectorSampleKernels (in META-INF/versions/17), which does the same
+// with the Vector API, and kernels is then one of those instead. Setting the
+// system property com.beatofthedrum.wvdecoder.vector to false keeps these
+// ones, to compare the two. Every kernel gives exactly the same results
+// whichever is used.
+
+class SampleKernels
+{
+    static final SampleKernels kernels = load();
+
+
+    // Returns the vector kernels if the JVM can run them, or else these.
+
+    static SampleKernels load()
+    {
+        if ("false".equals(System.getProperty("com.beatofthedrum.wvdecoder.vector")))
+            return new SampleKernels();
+
+        try
+        {
+            Class.forName("jdk.incubator.vector.IntVector");	// only there if the module was added
+
+            SampleKernels vector = (SampleKernels) Class.forName("com.beatofthedrum.wvdecoder.VectorSampleKernels")
+                .getDeclaredConstructor().newInstance();
+
+            if (vector.usable())
+                return vector;
+        }
+        catch (Throwable t)
+        {
+            // an older JVM, a plain class path or a Vector API we were not
+            // built for, all of which leave us with the scalar kernels
+        }
+
+        return new SampleKernels();
+    }
+
+    // Returns true if these kernels should be used in preference to the
+    // scalar ones.
+
+    boolean usable()
+    {
+        return true;
+    }
+
+    // Returns a short description of the kernels, for benchmarks and tools.
+
+    String describe()
+    {
+        return "scalar";
+    }
+
+    // Shift values[start] to values[end - 1] left by shift.
+
+    void shift(int [] values, int start, int end, int shift)
+    {
+        for (int i = start; i < end; i++)
+            values[i] <<= shift;
+    }
+
+    // Shift the values left by ones, filling with ones (the int32_ones of
+    // a 32-bit integer block).
+
+    void shift_ones(int [] values, int start, int end, int ones)
+    {
+        for (int i = start; i < end; i++)
+            values[i] = ((values[i] + 1) << ones) - 1;
+    }
+
+    // Shift the values left by dups, filling with copies of the low bit (the
+    // int32_dups of a 32-bit integer block).
+
+    void shift_dups(int [] values, int start, int end, int dups)
+    {
+        for (int i = start; i < end; i++)
+            values[i] = ((values[i] + (values[i] & 1)) << dups) - (values[i] & 1);
+    }
+
+    // Clip the values to min_value..max_value and then shift them left by
+    // shift.
+
+    void clip_shift(int [] values, int start, int end, int min_value, int max_value, int shift)
+    {
+        for (int i = start; i < end; i++)
+            values[i] = Math.max(min_value, Math.min(max_value, values[i])) << shift;
+    }
+
+    // Shift the values left by shift (right if it is negative) and then clip
+    // them to min_value..max_value, as float_values() does.
+
+    void shift_clip(int [] values, int start, int end, int shift, int min_value, int max_value)
+    {
+        if (shift >= 0)
+        {
+            for (int i = start; i < end; i++)
+                values[i] = Math.max(min_value, Math.min(max_value, values[i] << shift));
+        }
+        else
+        {
+            for (int i = start; i < end; i++)
+                values[i] = Math.max(min_value, Math.min(max_value, values[i] >> -shift));
+        }
+    }
+
+    // Undo joint stereo (if joint is set) on count stereo samples from
+    // buffer[start], checking each against the mute limit and adding it to
+    // the crc in wps.crc. Returns the number of samples done, which is less
+    // than count if one was over the mute limit (and is not added to the crc
+    // or, with joint stereo, changed).
+
+    int stereo_crc(WavpackStream wps, int [] buffer, int start, int count, int mute_limit, boolean joint)
+    {
+        int crc = (int) wps.crc;
+        int done;
+
+        for (done = 0; done < count; done++)
+        {
+            int index = start + done * 2;
+            int left = buffer[index], right = buffer[index + 1];
+
+            if (joint)
+                left += (right -= left >> 1);
+
+            if ((left < 0 ? -left : left) > mute_limit || (right < 0 ? -right : right) > mute_limit)
+                break;
+
+            buffer[index] = left;
+            buffer[index + 1] = right;
+            crc = (crc * 3 + left) * 3 + right;
+        }
+
+        wps.crc = crc;
+
+        return done;
+    }
+
+    // The same for count mono samples, which are only checked and added to
+    // the crc.
+
+    int mono_crc(WavpackStream wps, int [] buffer, int start, int count, int mute_limit)
+    {
+        int crc = (int) wps.crc;
+        int done;
+
+        for (done = 0; done < count; done++)
+        {
+            int value = buffer[start + done];
+
+            if ((value < 0 ? -value : value) > mute_limit)
+                break;
+
+            crc = crc * 3 + value;
+        }
+
+        wps.crc = crc;
+
+        return done;
+    }
+
+    // Store count values from values[start], each clipped to
+    // min_value..max_value and shifted left by shift, into the little-endian
+    // buffer pcm from byte position as PCM of the specified bytes per value.
+    // The absolute stores of whole shorts and ints become single (unaligned)
+    // writes to the array or memory behind the buffer.
+
+    void pack(int [] values, int start, int count, int min_value, int max_value, int shift,
+        java.nio.ByteBuffer pcm, int position, int bytes_per_sample)
+    {
+        int end = start + count;
+
+        switch (bytes_per_sample)
+        {
+            case 1:
+                for (int i = start; i < end; i++, position++)
+                    pcm.put(position, (byte) ((Math.max(min_value, Math.min(max_value, values[i])) << shift) + 128));
+
+                break;
+
+            case 2:
+                for (int i = start; i < end; i++, position += 2)
+                    pcm.putShort(position, (short) (Math.max(min_value, Math.min(max_value, values[i])) << shift));
+
+                break;
+
+            case 3:
+                for (int i = start; i < end; i++, position += 3)
+                {
+                    int value = Math.max(min_value, Math.min(max_value, values[i])) << shift;
+
+                    pcm.putShort(position, (short) value);
+                    pcm.put(position + 2, (byte) (value >> 16));
+                }
+
+                break;
+
+            default:
+                for (int i = start; i < end; i++, position += 4)
+                    pcm.putInt(position, Math.max(min_value, Math.min(max_value, values[i])) << shift);
+
+                break;
+        }
+    }
+
+    // Store the values, clipped and shifted as above, into floats from
+    // position, multiplied by scale.
+
+    void to_floats(int [] values, int start, int count, int min_value, int max_value, int shift,
+        float scale, float [] floats, int position)
+    {
+        int end = start + count;
+
+        for (int i = start; i < end; i++, position++)
+            floats[position] = (Math.max(min_value, Math.min(max_value, values[i])) << shift) * scale;
+    }
+
+    // Store the values, clipped and shifted as above, into shorts from
+    // position, shifted right by narrow.
+
+    void to_shorts(int [] values, int start, int count, int min_value, int max_value, int shift,
+        int narrow, short [] shorts, int position)
+    {
+        int end = start + count;
+
+        for (int i = start; i < end; i++, position++)
+            shorts[position] = (short) ((Math.max(min_value, Math.min(max_value, values[i])) << shift) >> narrow);
+    }
+}
@@ -25,7 +25,14 @@ class UnpackUtils
     static int unpack_init(WavpackContext wpc)
     {
         WavpackStream wps = wpc.stream;
-        WavpackMetadata wpmd = new WavpackMetadata();
+        WavpackMetadata wpmd = wpc.metadata;
+
+        wpmd.id = 0;
+        wpmd.byte_length = 0;
+        wpmd.data = null;
+        wpmd.hasdata = 0;
+        wpmd.status = 0;
+        wpmd.bytecount = 24;
 
         if (wps.wphdr.block_samples > 0 && wps.wphdr.block_index != -1)
             wps.sample_index = wps.wphdr.block_index;
@@ -33,6 +40,13 @@ class UnpackUtils
         wps.mute_error = 0;
         wps.crc = 0xffffffff;
         wps.wvbits.sr = 0;
+        wps.wvbits.file = null;
+        wps.wvbits.end = 0;
+        wps.wvc_open = false;
+        wps.wvx_open = false;
+        wps.wvx_used = false;
+        wps.crc_x = 0xffffffff;
+        wps.dc_shaping_delta[0] = wps.dc_shaping_delta[1] = 0;
 
         while ((MetadataUtils.read_metadata_buff(wpc, wpmd)) == Defines.TRUE)
         {
@@ -44,10 +58,17 @@ class UnpackUtils
             }
 
             if (wpmd.id == Defines.ID_WV_BITSTREAM)
+            {
+                // float and extended integer blocks may have a "wvx" bitstream after it
+
+                if ((wps.wphdr.flags & (Defines.FLOAT_DATA | Defines.INT32_DATA)) != 0)
+                    read_wvx_metadata(wpc, wpmd);
+
                 break;
+            }
         }
         
-        if (wps.wphdr.block_samples != 0 && (null == wps.wvbits.file) ) 
+        if (wps.wphdr.block_samples != 0 && wps.wvbits.end == 0)
         {
             wpc.error_message = "invalid WavPack file!";
             wpc.error = true;
@@ -55,9 +76,12 @@ class UnpackUtils
         }
 
 
+        if (wpc.wvc != null && wps.wphdr.block_samples != 0)
+            read_wvc_block(wpc);
+
         if (wps.wphdr.block_samples != 0)
         {
-            if ((wps.wphdr.flags & Defines.INT32_DATA) != 0 && wps.int32_sent_bits != 0)
+            if ((wps.wphdr.flags & Defines.INT32_DATA) != 0 && wps.int32_sent_bits != 0 && !wps.wvx_open)
                 wpc.lossy_blocks = 1;
 
             if ((wps.wphdr.flags & Defines.FLOAT_DATA)
@@ -73,26 +97,281 @@ class UnpackUtils
         return Defines.TRUE;
     }
 
+    // Clear the state a stream holds from the file it was last used for,
+    // keeping its buffers. The block header is cleared too, so the next
+    // header read starts the stream as if it were new.
+
+    static void reset_stream(WavpackStream wps)
+    {
+        wps.wphdr.ckSize = wps.wphdr.total_samples = wps.wphdr.block_index = 0;
+        wps.wphdr.block_samples = wps.wphdr.flags = wps.wphdr.crc = 0;
+        wps.wphdr.version = 0;
+        wps.wphdr.status = 0;
+        wps.wphdr.bytes_skipped = 0;
+
+        reset_bitstream(wps.wvbits);
+        reset_bitstream(wps.wvcbits);
+        reset_bitstream(wps.wvxbits);
+
+        wps.wvc_open = wps.wvx_open = wps.wvx_used = false;
+        wps.wvc_crc = wps.crc_x = wps.crc_wvx = 0;
+        wps.dc_error[0] = wps.dc_error[1] = 0;
+        wps.dc_shaping_acc[0] = wps.dc_shaping_acc[1] = 0;
+        wps.dc_shaping_delta[0] = wps.dc_shaping_delta[1] = 0;
+        wps.num_terms = 0;
+        wps.mute_error = 0;
+        wps.sample_index = wps.crc = 0;
+        wps.int32_sent_bits = wps.int32_zeros = wps.int32_ones = wps.int32_dups = 0;
+        wps.float_flags = wps.float_shift = wps.float_max_exp = wps.float_norm_exp = 0;
+    }
+
+    // Detach a bitstream from whatever it was reading, keeping its buffer.
+
+    static void reset_bitstream(Bitstream bs)
+    {
+        bs.sr = 0;
+        bs.bc = 0;
+        bs.end = 0;
+        bs.file_bytes = 0;
+        bs.error = 0;
+        bs.file = null;
+        bs.mbuf = null;
+        bs.buf_index = 0;
+    }
+
     // This function initialzes the main bitstream for audio samples, which must
-    // be in the "wv" file.
+    // be in the "wv" file. The bitstream is decoded in place from the framed
+    // block (wpc.block), which moves on to whatever follows it.
 
     static int init_wv_bitstream(WavpackContext wpc, WavpackMetadata wpmd)
     {
         WavpackStream wps = wpc.stream;
+        int bytes = wpmd.byte_length + (wpmd.byte_length & 1);
+        int start = wpc.block.position();
+        int end = start + bytes;
+
+        if (end > wpc.block.limit())
+            end = wpc.block.limit();
 
-        if (wpmd.hasdata == Defines.TRUE)
-            wps.wvbits = BitsUtils.bs_open_read(wpmd.data, 0, wpmd.byte_length, wpc.infile,
-                (long) 0, 0);
-        else if (wpmd.byte_length > 0)
+        if (wpmd.byte_length > 0)
         {
-            int len = wpmd.byte_length & 1;
-            wps.wvbits = BitsUtils.bs_open_read(wpc.read_buffer, -1, wpc.read_buffer.length, wpc.infile,
-                (long) (wpmd.byte_length + len), 1);
+            BitsUtils.bs_open_mapped(wps.wvbits, wpc.block, start, end, wpc.read_buffer);
+            wpc.block.position(end);
         }
 
+        wpmd.bytecount += bytes;
+
         return Defines.TRUE;
     }
 
+    // Scan the metadata that follows the audio bitstream of a float or
+    // extended integer block for its "wvx" bitstream. Anything else found
+    // there is passed over, and if it cannot be read the block is simply
+    // unpacked without the extra information.
+
+    static void read_wvx_metadata(WavpackContext wpc, WavpackMetadata wpmd)
+    {
+        while ((MetadataUtils.read_metadata_buff(wpc, wpmd)) == Defines.TRUE)
+        {
+            if (wpmd.id == Defines.ID_WVX_BITSTREAM)
+            {
+                init_wvx_bitstream(wpc, wpmd);
+                break;
+            }
+        }
+    }
+
+    // Read the "wvx" bitstream, which holds what could not be stored in the
+    // integer samples of a float or extended integer block, into wps.wvx_data
+    // and open it. Like the audio bitstream it is left for this function to
+    // read by read_metadata_buff().
+
+    static int init_wvx_bitstream(WavpackContext wpc, WavpackMetadata wpmd)
+    {
+        WavpackStream wps = wpc.stream;
+        int bytes = wpmd.byte_length + (wpmd.byte_length & 1);
+
+        if (wps.wvx_data == null || wps.wvx_data.length < bytes)
+            wps.wvx_data = new byte[Math.max(bytes, Defines.BITSTREAM_BUFFER_SIZE)];
+
+        if (bytes > wpc.block.remaining())
+            return Defines.FALSE;
+
+        wpc.block.get(wps.wvx_data, 0, bytes);
+
+        wpmd.bytecount += bytes;
+
+        if (wpmd.byte_length > 4)
+            open_wvx_bitstream(wps, wps.wvx_data, 0, wpmd.byte_length);
+
+        return Defines.TRUE;
+    }
+
+    // Open the "wvx" bitstream on the bytes from start up to end of data,
+    // which must be an array of its own. The first four bytes are not part of
+    // the bitstream but the crc of the values it completes, which
+    // check_crc_error() compares with crc_x.
+
+    static void open_wvx_bitstream(WavpackStream wps, byte [] data, int start, int end)
+    {
+        wps.crc_wvx = (data[start] & 0xff) | (data[start + 1] & 0xff) << 8 | (data[start + 2] & 0xff) << 16
+            | (data[start + 3] & 0xff) << 24;
+        BitsUtils.bs_open_read(wps.wvxbits, data, start + 4, end, null, (long) 0, 0);
+        wps.wvx_open = true;
+    }
+
+
+    // Find the block of the correction file that goes with the block being
+    // initialized and open its "wvc" bitstream. Correction blocks for main
+    // blocks that were never initialized (because they were skipped over) are
+    // dropped, and one that belongs to a later block is left for that block.
+    // A hybrid block without a correction block is unpacked lossy as usual.
+
+    static void read_wvc_block(WavpackContext wpc)
+    {
+        WavpackStream wps = wpc.stream;
+        WavpackHeader wphdr;
+
+        while ((wphdr = wpc.wvc.peek()) != null)
+        {
+            if (wphdr.block_index > wps.wphdr.block_index)
+                break;
+
+            if (wphdr.block_index == wps.wphdr.block_index)
+            {
+                // a segment's blocks all have the same index, so they are
+                // matched in order with the segment position flags checked
+
+                if (wphdr.block_samples != wps.wphdr.block_samples
+                    || ((wphdr.flags ^ wps.wphdr.flags) & (Defines.INITIAL_BLOCK | Defines.FINAL_BLOCK)) != 0)
+                    break;
+
+                wps.wvc_crc = wphdr.crc;
+                wps.wvc_data = wpc.wvc.take(wps.wvc_data);
+                init_wvc_bitstream(wps);
+                break;
+            }
+
+            wpc.wvc.skip();
+        }
+
+        if (!wps.wvc_open && (wps.wphdr.flags & Defines.HYBRID_FLAG) != 0)
+            wpc.lossy_blocks = 1;
+    }
+
+    // Scan the metadata of the correction block in wps.wvc_data for the "wvc"
+    // bitstream and open it to be read in place. If there is none wvc_open is
+    // left clear and the block is unpacked without correction. The "wvx"
+    // bitstream of a hybrid float or extended integer block, which follows
+    // the "wvc" bitstream, is opened as well.
+
+    static void init_wvc_bitstream(WavpackStream wps)
+    {
+        byte data [] = wps.wvc_data;
+        int end = ((data[4] & 0xff) | (data[5] & 0xff) << 8 | (data[6] & 0xff) << 16) + 8;
+        int counter = 32;
+
+        while (end - counter >= 2)
+        {
+            int id = data[counter] & 0xff;
+            int byte_length = (data[counter + 1] & 0xff) << 1;
+            counter += 2;
+
+            if ((id & Defines.ID_LARGE) != 0)
+            {
+                if (end - counter < 2)
+                    break;
+
+                id &= ~Defines.ID_LARGE;
+                byte_length += (data[counter] & 0xff) << 9;
+                byte_length += (data[counter + 1] & 0xff) << 17;
+                counter += 2;
+            }
+
+            if (byte_length > end - counter)
+                break;
+
+            if ((id & ~Defines.ID_ODD_SIZE) == Defines.ID_WVC_BITSTREAM)
+            {
+                if ((id & Defines.ID_ODD_SIZE) != 0)
+                    byte_length--;
+
+                if (byte_length > 0)
+                {
+                    BitsUtils.bs_open_read(wps.wvcbits, data, counter, counter + byte_length, null, (long) 0, 0);
+                    wps.wvc_open = true;
+                }
+
+                byte_length += byte_length & 1;
+            }
+            else if ((id & ~Defines.ID_ODD_SIZE) == Defines.ID_WVX_BITSTREAM && wps.wvc_open)
+            {
+                int len = byte_length - ((id & Defines.ID_ODD_SIZE) != 0 ? 1 : 0);
+
+                // copied out, as the "wvc" bitstream may overwrite the array once it runs out
+
+                if (len > 4)
+                {
+                    if (wps.wvx_data == null || wps.wvx_data.length < len)
+                        wps.wvx_data = new byte[Math.max(len, Defines.BITSTREAM_BUFFER_SIZE)];
+
+                    System.arraycopy(data, counter, wps.wvx_data, 0, len);
+                    open_wvx_bitstream(wps, wps.wvx_data, 0, len);
+                }
+
+                break;
+            }
+
+            counter += byte_length;
+        }
+    }
+
+    // Read the noise shaping information from the specified metadata block.
+    // This is only used to remove the shaping again when a correction file is
+    // applied; lossy decoding does not need it. Lengths that are not
+    // understood are ignored.
+
+    static int read_shaping_info(WavpackStream wps, WavpackMetadata wpmd)
+    {
+        byte byteptr [] = wpmd.data;
+        boolean mono = (wps.wphdr.flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) != 0;
+
+        if (wpmd.hasdata == Defines.FALSE)
+            return Defines.TRUE;
+
+        if (wpmd.byte_length == 2)
+        {
+            wps.dc_shaping_acc[0] = WordsUtils.restore_weight(byteptr[0]) << 16;
+            wps.dc_shaping_acc[1] = WordsUtils.restore_weight(byteptr[1]) << 16;
+        }
+        else if (wpmd.byte_length >= (mono ? 4 : 8))
+        {
+            int counter = 0;
+
+            wps.dc_error[0] = WordsUtils.exp2s((short) ((byteptr[0] & 0xff) + ((byteptr[1] & 0xff) << 8)));
+            wps.dc_shaping_acc[0] = WordsUtils.exp2s((short) ((byteptr[2] & 0xff) + ((byteptr[3] & 0xff) << 8)));
+            counter += 4;
+
+            if (!mono)
+            {
+                wps.dc_error[1] = WordsUtils.exp2s((short) ((byteptr[4] & 0xff) + ((byteptr[5] & 0xff) << 8)));
+                wps.dc_shaping_acc[1] = WordsUtils.exp2s((short) ((byteptr[6] & 0xff) + ((byteptr[7] & 0xff) << 8)));
+                counter += 4;
+            }
+
+            if (wpmd.byte_length == (mono ? 6 : 12))
+            {
+                wps.dc_shaping_delta[0] = WordsUtils.exp2s((short) ((byteptr[counter] & 0xff)
+                    + ((byteptr[counter + 1] & 0xff) << 8)));
+
+                if (!mono)
+                    wps.dc_shaping_delta[1] = WordsUtils.exp2s((short) ((byteptr[counter + 2] & 0xff)
+                        + ((byteptr[counter + 3] & 0xff) << 8)));
+            }
+        }
+
+        return Defines.TRUE;
+    }
 
     // Read decorrelation terms from specified metadata block into the
     // decorr_passes array. The terms range from -3 to 8, plus 17 & 18;
@@ -105,33 +384,42 @@ class UnpackUtils
     {
         int termcnt = wpmd.byte_length;
         byte byteptr [] = wpmd.data;
-        WavpackStream tmpwps = new WavpackStream();
-
         int counter = 0;
         int dcounter = 0;
 
         if (termcnt > Defines.MAX_NTERMS)
             return Defines.FALSE;
 
-        tmpwps.num_terms = termcnt;
+        // check all the terms first so the passes are left alone on an error
 
-        dcounter = termcnt - 1;
+        for (counter = 0; counter < termcnt; counter++)
+        {
+            int term = (byteptr[counter] & 0x1f) - 5;
+
+            if (term < -3 || (term > Defines.MAX_TERM && term < 17) || term > 18)
+                return Defines.FALSE;
+        }
+
+        counter = 0;
 
         for (dcounter = termcnt - 1; dcounter >= 0; dcounter--)
         {
-            tmpwps.decorr_passes[dcounter].term = ((byteptr[counter] & 0x1f) - 5);
-            tmpwps.decorr_passes[dcounter].delta = ((byteptr[counter] >> 5) & 0x7);
+            decorr_pass dpp = wps.decorr_passes[dcounter];
 
-            counter++;
+            dpp.term = ((byteptr[counter] & 0x1f) - 5);
+            dpp.delta = ((byteptr[counter] >> 5) & 0x7);
+            dpp.weight_A = dpp.weight_B = 0;
+
+            for (int internalc = 0; internalc < Defines.MAX_TERM; internalc++)
+            {
+                dpp.samples_A[internalc] = 0;
+                dpp.samples_B[internalc] = 0;
+            }
 
-            if (tmpwps.decorr_passes[dcounter].term < -3
-                || (tmpwps.decorr_passes[dcounter].term > Defines.MAX_TERM && tmpwps.decorr_passes[dcounter].term < 17)
-                || tmpwps.decorr_passes[dcounter].term > 18)
-                return Defines.FALSE;        
+            counter++;
         }
 
-        wps.decorr_passes = tmpwps.decorr_passes;
-        wps.num_terms = tmpwps.num_terms;
+        wps.num_terms = termcnt;
 
         return Defines.TRUE;
     }
@@ -145,12 +433,10 @@ class UnpackUtils
 
     static int read_decorr_weights(WavpackStream wps, WavpackMetadata wpmd)
     {
-        int termcnt = wpmd.byte_length, tcount;
+        int termcnt = wpmd.byte_length;
         byte byteptr [] = wpmd.data;
-        decorr_pass dpp = new decorr_pass();
         int counter = 0;
         int dpp_idx;
-        int myiterator = 0;
 
         if ((wps.wphdr.flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0)
             termcnt /= 2;
@@ -160,18 +446,13 @@ class UnpackUtils
             return Defines.FALSE;
         }
 
-        for (tcount = wps.num_terms; tcount > 0; tcount--)
-            dpp.weight_A = dpp.weight_B = 0;
-
-        myiterator = wps.num_terms;
+        dpp_idx = wps.num_terms - 1;
 
         while (termcnt > 0)
         {
-            dpp_idx = myiterator - 1;
-            dpp.weight_A = WordsUtils.restore_weight(byteptr[counter]);
-
-            wps.decorr_passes[dpp_idx].weight_A = dpp.weight_A;
+            decorr_pass dpp = wps.decorr_passes[dpp_idx];
 
+            dpp.weight_A = WordsUtils.restore_weight(byteptr[counter]);
             counter++;
 
             if ((wps.wphdr.flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0)
@@ -179,9 +460,10 @@ class UnpackUtils
                 dpp.weight_B = WordsUtils.restore_weight(byteptr[counter]);
                 counter++;
             }
-            wps.decorr_passes[dpp_idx].weight_B = dpp.weight_B;
+            else
+                dpp.weight_B = 0;
 
-            myiterator--;
+            dpp_idx--;
             termcnt--;
         }
 
@@ -200,28 +482,18 @@ class UnpackUtils
     static int read_decorr_samples(WavpackStream wps, WavpackMetadata wpmd)
     {
         byte byteptr [] = wpmd.data;
-        decorr_pass dpp = new decorr_pass();
         int tcount;
         int counter = 0;
         int dpp_index = 0;
         int uns_buf0, uns_buf1, uns_buf2, uns_buf3;
-        int sample_counter = 0;
-
-        dpp_index = 0;
 
-        for (tcount = wps.num_terms; tcount > 0; tcount--)
+        for (tcount = 0; tcount < wps.num_terms; tcount++)
         {
-            dpp.term = wps.decorr_passes[dpp_index].term;
-
             for (int internalc = 0; internalc < Defines.MAX_TERM; internalc++)
             {
-                dpp.samples_A[internalc] = 0;
-                dpp.samples_B[internalc] = 0;
-                wps.decorr_passes[dpp_index].samples_A[internalc] = 0;
-                wps.decorr_passes[dpp_index].samples_B[internalc] = 0;
+                wps.decorr_passes[tcount].samples_A[internalc] = 0;
+                wps.decorr_passes[tcount].samples_B[internalc] = 0;
             }
-
-            dpp_index++;
         }
 
         if (wps.wphdr.version == 0x402 && (wps.wphdr.flags & Defines.HYBRID_FLAG) > 0)
@@ -232,10 +504,12 @@ class UnpackUtils
                 counter += 2;
         }
 
-        dpp_index--;
+        dpp_index = wps.num_terms - 1;
 
-        while (counter < wpmd.byte_length)
+        while (dpp_index >= 0 && counter < wpmd.byte_length)
         {
+            decorr_pass dpp = wps.decorr_passes[dpp_index];
+
             if (dpp.term > Defines.MAX_TERM)
             {
                 uns_buf0 = (byteptr[counter] & 0xff);
@@ -298,12 +572,6 @@ class UnpackUtils
                 }
             }
 
-            for (sample_counter = 0; sample_counter < Defines.MAX_TERM; sample_counter++)
-            {
-                wps.decorr_passes[dpp_index].samples_A[sample_counter] = dpp.samples_A[sample_counter];
-                wps.decorr_passes[dpp_index].samples_B[sample_counter] = dpp.samples_B[sample_counter];
-            }
-
             dpp_index--;
         }
 
@@ -350,12 +618,13 @@ class UnpackUtils
         if (bytecnt == 0 || bytecnt > 5)
             return Defines.FALSE;
 
-        wpc.config.num_channels = byteptr[counter];
+        wpc.config.num_channels = byteptr[counter] & 0xFF;
         counter++;
+        bytecnt--;
 
-        while (bytecnt >= 0)
+        while (bytecnt > 0)
         {
-            mask |= (long)((byteptr[counter] & 0xFF) << shift);
+            mask |= (long) (byteptr[counter] & 0xFF) << shift;
             counter++;
             shift += 8;
             bytecnt--;
@@ -433,6 +702,7 @@ class UnpackUtils
         final int byte_count = wpc.config.bytes_per_sample;
 
         int mute_limit = (int) ((1L << ((flags & Defines.MAG_MASK) >> Defines.MAG_LSB)) + 2);
+        WavpackOutput out = wpc.output.kind != WavpackOutput.INTS ? wpc.output : null;
         decorr_pass dpp;
         int tcount;
         int buffer_counter = 0;
@@ -456,6 +726,9 @@ class UnpackUtils
                 tempc = 2 * sample_count;
             }
 
+            if (out != null)
+                out.zero(out.index, (int) tempc);
+
             buffer_counter = bufferStartPos;
             while (tempc > 0)
             {
@@ -472,6 +745,20 @@ class UnpackUtils
         if ((flags & Defines.HYBRID_FLAG) > 0)
             mute_limit *= 2;
 
+        // normally the last decorrelation pass is done together with all the
+        // final steps, see final_stereo_pass()
+
+        int fused = 0;
+
+        if (wps.num_terms > 0 && !wps.wvc_open && (flags & (Defines.FLOAT_DATA | Defines.INT32_DATA)) == 0
+            && wps.decorr_passes[wps.num_terms - 1].term >= 17)
+            fused = 1;
+
+        // the last loop stores the samples straight into the output, except
+        // for false stereo blocks, which are stored once they are doubled up
+
+        WavpackOutput final_out = (flags & Defines.FALSE_STEREO) != 0 ? null : out;
+
 
         ///////////////////// handle version 4 mono data /////////////////////////
 
@@ -480,11 +767,15 @@ class UnpackUtils
 
             int dpp_index = 0;
 
-            i = WordsUtils.get_words(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos);
+            if ((flags & Defines.HYBRID_FLAG) == 0)
+                i = WordsUtils.get_words_lossless(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos);
+            else
+                i = WordsUtils.get_words(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos,
+                    wps.wvc_open ? correction_buffer(wps, sample_count) : null, wps.wvcbits);
 
             if(byte_count>2)
             {
-                for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                 {
                     dpp = wps.decorr_passes[dpp_index];
                     decorr_mono_pass_24bit(dpp, buffer, sample_count, bufferStartPos);
@@ -493,7 +784,7 @@ class UnpackUtils
             }
             else
             {
-                for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                 {
                     dpp = wps.decorr_passes[dpp_index];
                     decorr_mono_pass(dpp, buffer, sample_count, bufferStartPos);
@@ -501,20 +792,27 @@ class UnpackUtils
                 }
             }
 
-            int bf_abs;
-            final int crclimit = (int)(sample_count + bufferStartPos);
+            if (fused != 0)
+            {
+                wps.crc = crc;
+
+                if (final_mono_pass(wps, wps.decorr_passes[dpp_index], buffer, (int) sample_count, bufferStartPos,
+                    byte_count > 2, mute_limit, final_out) != sample_count)
+                    i = -1;
 
-            for (int q = bufferStartPos; q < crclimit; q++)
+                crc = (int) wps.crc;
+            }
+            else
             {
-                bf_abs = (buffer[q] < 0 ? -buffer[q] : buffer[q]);
+                if (wps.wvc_open)
+                    apply_correction(wps, buffer, sample_count, bufferStartPos);
 
-                if (bf_abs > mute_limit)
-                {
-                    i = q;
-                    break;
-                }
+                wps.crc = crc;
 
-                crc = (crc << 1) + crc + buffer[q];
+                if (SampleKernels.kernels.mono_crc(wps, buffer, bufferStartPos, (int) sample_count, mute_limit) != sample_count)
+                    i = -1;
+
+                crc = (int) wps.crc;
             }
         }
 
@@ -522,7 +820,11 @@ class UnpackUtils
 
         else
         {
-            samples_processed = WordsUtils.get_words(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos);
+            if ((flags & Defines.HYBRID_FLAG) == 0)
+                samples_processed = WordsUtils.get_words_lossless(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos);
+            else
+                samples_processed = WordsUtils.get_words(sample_count, flags, wps.w, wps.wvbits, buffer, bufferStartPos,
+                    wps.wvc_open ? correction_buffer(wps, sample_count) : null, wps.wvcbits);
 
             i = samples_processed;
 
@@ -532,7 +834,7 @@ class UnpackUtils
                 
                 if(byte_count>2)
                 {
-                    for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                    for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                     {
                         dpp = wps.decorr_passes[dpp_index];
                         decorr_stereo_pass_24bit(dpp, buffer, sample_count, bufferStartPos);
@@ -542,7 +844,7 @@ class UnpackUtils
                 }
                 else
                 {
-                    for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                    for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                     {
                         dpp = wps.decorr_passes[dpp_index];
                         decorr_stereo_pass(dpp, buffer, sample_count, bufferStartPos);
@@ -557,7 +859,7 @@ class UnpackUtils
 
                 if(byte_count>2)
                 {
-                    for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                    for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                     {
                         dpp = wps.decorr_passes[dpp_index];
                         decorr_stereo_pass_24bit(dpp, buffer, 8, bufferStartPos);
@@ -570,7 +872,7 @@ class UnpackUtils
                 }
                 else
                 {
-                    for (tcount = wps.num_terms - 1; tcount >= 0; tcount--)
+                    for (tcount = wps.num_terms - 1 - fused; tcount >= 0; tcount--)
                     {
                         dpp = wps.decorr_passes[dpp_index];
                         decorr_stereo_pass(dpp, buffer, 8, bufferStartPos);
@@ -583,49 +885,28 @@ class UnpackUtils
                 }                
             }
 
-            if ((flags & Defines.JOINT_STEREO) > 0)
+            if (fused != 0)
             {
-                int bf_abs, bf1_abs;
-
-                for (buffer_counter = 0; buffer_counter < sample_count * 2; buffer_counter += 2)
-                {
-                    buffer[buffer_counter + bufferStartPos] += (buffer[buffer_counter + 1 + bufferStartPos] -= (buffer[buffer_counter + bufferStartPos] >> 1));
-
-                    bf_abs = (buffer[buffer_counter + bufferStartPos] < 0 ? -buffer[buffer_counter + bufferStartPos] : buffer[buffer_counter + bufferStartPos]);
-                    bf1_abs = (buffer[buffer_counter + 1 + bufferStartPos]
-                        < 0
-                            ? -buffer[buffer_counter + 1 + bufferStartPos]
-                            : buffer[buffer_counter + 1 + bufferStartPos]);
+                wps.crc = crc;
 
-                    if (bf_abs > mute_limit || bf1_abs > mute_limit)
-                    {
-                        i = buffer_counter / 2;
-                        break;
-                    }
+                if (final_stereo_pass(wps, wps.decorr_passes[wps.num_terms - 1], buffer, (int) sample_count,
+                    bufferStartPos, byte_count > 2, mute_limit, final_out) != sample_count)
+                    i = -1;
 
-                    crc = (crc * 3 + buffer[buffer_counter + bufferStartPos]) * 3 + buffer[buffer_counter + 1 + bufferStartPos];
-                }
+                crc = (int) wps.crc;
             }
             else
             {
-                int bf_abs, bf1_abs;
+                if (wps.wvc_open)
+                    apply_correction(wps, buffer, sample_count, bufferStartPos);
 
-                for (buffer_counter = 0; buffer_counter < sample_count * 2; buffer_counter += 2)
-                {
-                    bf_abs = (buffer[buffer_counter + bufferStartPos] < 0 ? -buffer[buffer_counter + bufferStartPos] : buffer[buffer_counter + bufferStartPos]);
-                    bf1_abs = (buffer[buffer_counter + 1 + bufferStartPos]
-                        < 0
-                            ? -buffer[buffer_counter + 1 + bufferStartPos]
-                            : buffer[buffer_counter + 1 + bufferStartPos]);
+                wps.crc = crc;
 
-                    if (bf_abs > mute_limit || bf1_abs > mute_limit)
-                    {
-                        i = buffer_counter / 2;
-                        break;
-                    }
+                if (SampleKernels.kernels.stereo_crc(wps, buffer, bufferStartPos, (int) sample_count, mute_limit,
+                    (flags & Defines.JOINT_STEREO) != 0) != sample_count)
+                    i = -1;
 
-                    crc = (crc * 3 + buffer[buffer_counter + bufferStartPos]) * 3 + buffer[buffer_counter + 1 + bufferStartPos];
-                }
+                crc = (int) wps.crc;
             }
         }
 
@@ -641,6 +922,13 @@ class UnpackUtils
             {
                 sc = 2 * sample_count;
             }
+
+            // what the fused pass stored is replaced (otherwise fixup_samples()
+            // stores the zeros)
+
+            if (fused != 0 && final_out != null)
+                final_out.zero(final_out.index, (int) sc);
+
             buffer_counter = bufferStartPos;
 
             while (sc > 0)
@@ -654,7 +942,8 @@ class UnpackUtils
             i = sample_count;
         }
 
-        fixup_samples(wps, buffer, i, bufferStartPos);
+        if (fused == 0)
+            fixup_samples(wps, buffer, i, bufferStartPos, wpc.float_output, final_out);
 
         if ((flags & Defines.FALSE_STEREO) > 0)
         {
@@ -674,6 +963,9 @@ class UnpackUtils
                 src_idx--;
                 c--;
             }
+
+            if (out != null)
+                out.store(buffer, bufferStartPos, (int) i * 2, out.index, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
         }
 
         wps.sample_index += i;
@@ -682,6 +974,208 @@ class UnpackUtils
         return i;
     }
     
+    // This is the last decorrelation pass of a stereo block, which must have
+    // a term of 17 or 18 (as the first term of every standard mode does),
+    // done in one sweep together with all the steps that follow it: joint
+    // stereo, the mute limit test, the crc and the clipping and shifting of
+    // fixup_samples(). The pass keeps its history in locals, so the values
+    // it leaves in the buffer can be the final ones, and the buffer is read
+    // and written just once instead of three or four times. It must not be
+    // used where fixup_samples() does more than clip and shift, or where a
+    // correction is applied. If out is not null the final values are stored
+    // there instead of in the buffer. The number of samples done is returned,
+    // which is less than sample_count if one was over the mute limit. The crc
+    // is accumulated in wps.crc.
+
+    static int final_stereo_pass(WavpackStream wps, decorr_pass dpp, int [] buffer, int sample_count, int buf_idx,
+        boolean wide, int mute_limit, WavpackOutput out)
+    {
+        long flags = wps.wphdr.flags;
+        int shift = (int) ((flags & Defines.SHIFT_MASK) >> Defines.SHIFT_LSB);
+        int min_value = Integer.MIN_VALUE, max_value = Integer.MAX_VALUE;
+        boolean joint = (flags & Defines.JOINT_STEREO) != 0;
+        boolean term_17 = dpp.term == 17;
+        int delta = dpp.delta, weight_A = dpp.weight_A, weight_B = dpp.weight_B;
+        int sam_A0 = dpp.samples_A[0], sam_A1 = dpp.samples_A[1];
+        int sam_B0 = dpp.samples_B[0], sam_B1 = dpp.samples_B[1];
+        int crc = (int) wps.crc;
+        int count;
+
+        if ((flags & Defines.HYBRID_FLAG) != 0)
+        {
+            min_value = min_value(flags, shift);
+            max_value = ~min_value;
+        }
+
+        for (count = 0; count < sample_count; count++)
+        {
+            int index = buf_idx + count * 2;
+            int sam, in, left, right;
+
+            sam = term_17 ? 2 * sam_A0 - sam_A1 : (3 * sam_A0 - sam_A1) >> 1;
+            in = buffer[index];
+            left = (wide ? (int) ((weight_A * (long) sam + 512) >> 10) : (weight_A * sam + 512) >> 10) + in;
+
+            if (sam != 0 && in != 0)
+                weight_A += (((sam ^ in) >> 30) | 1) * delta;
+
+            sam_A1 = sam_A0;
+            sam_A0 = left;
+
+            sam = term_17 ? 2 * sam_B0 - sam_B1 : (3 * sam_B0 - sam_B1) >> 1;
+            in = buffer[index + 1];
+            right = (wide ? (int) ((weight_B * (long) sam + 512) >> 10) : (weight_B * sam + 512) >> 10) + in;
+
+            if (sam != 0 && in != 0)
+                weight_B += (((sam ^ in) >> 30) | 1) * delta;
+
+            sam_B1 = sam_B0;
+            sam_B0 = right;
+
+            if (joint)
+                left += (right -= left >> 1);
+
+            if ((left < 0 ? -left : left) > mute_limit || (right < 0 ? -right : right) > mute_limit)
+                break;
+
+            crc = (crc * 3 + left) * 3 + right;
+
+            left = Math.max(min_value, Math.min(max_value, left)) << shift;
+            right = Math.max(min_value, Math.min(max_value, right)) << shift;
+
+            if (out == null)
+            {
+                buffer[index] = left;
+                buffer[index + 1] = right;
+            }
+            else
+            {
+                out.put(out.index + count * 2, left);
+                out.put(out.index + count * 2 + 1, right);
+            }
+        }
+
+        dpp.samples_A[0] = sam_A0;
+        dpp.samples_A[1] = sam_A1;
+        dpp.samples_B[0] = sam_B0;
+        dpp.samples_B[1] = sam_B1;
+        dpp.weight_A = weight_A;
+        dpp.weight_B = weight_B;
+        wps.crc = crc;
+
+        return count;
+    }
+
+    // Same as final_stereo_pass() above, for mono blocks.
+
+    static int final_mono_pass(WavpackStream wps, decorr_pass dpp, int [] buffer, int sample_count, int buf_idx,
+        boolean wide, int mute_limit, WavpackOutput out)
+    {
+        long flags = wps.wphdr.flags;
+        int shift = (int) ((flags & Defines.SHIFT_MASK) >> Defines.SHIFT_LSB);
+        int min_value = Integer.MIN_VALUE, max_value = Integer.MAX_VALUE;
+        boolean term_17 = dpp.term == 17;
+        int delta = dpp.delta, weight_A = dpp.weight_A;
+        int sam_A0 = dpp.samples_A[0], sam_A1 = dpp.samples_A[1];
+        int crc = (int) wps.crc;
+        int count;
+
+        if ((flags & Defines.HYBRID_FLAG) != 0)
+        {
+            min_value = min_value(flags, shift);
+            max_value = ~min_value;
+        }
+
+        for (count = 0; count < sample_count; count++)
+        {
+            int sam, in, value;
+
+            sam = term_17 ? 2 * sam_A0 - sam_A1 : (3 * sam_A0 - sam_A1) >> 1;
+            in = buffer[buf_idx + count];
+            value = (wide ? (int) ((weight_A * (long) sam + 512) >> 10) : (weight_A * sam + 512) >> 10) + in;
+
+            if (sam != 0 && in != 0)
+                weight_A += (((sam ^ in) >> 30) | 1) * delta;
+
+            sam_A1 = sam_A0;
+            sam_A0 = value;
+
+            if ((value < 0 ? -value : value) > mute_limit)
+                break;
+
+            crc = crc * 3 + value;
+            value = Math.max(min_value, Math.min(max_value, value)) << shift;
+
+            if (out == null)
+                buffer[buf_idx + count] = value;
+            else
+                out.put(out.index + count, value);
+        }
+
+        dpp.samples_A[0] = sam_A0;
+        dpp.samples_A[1] = sam_A1;
+        dpp.weight_A = weight_A;
+        wps.crc = crc;
+
+        return count;
+    }
+
+    // Return the stream's correction buffer, big enough for sample_count
+    // samples and cleared, for get_words() to fill in.
+
+    static int [] correction_buffer(WavpackStream wps, long sample_count)
+    {
+        int count = (int) sample_count * 2;
+
+        if (wps.correction == null || wps.correction.length < count)
+            wps.correction = new int[count];
+        else
+            java.util.Arrays.fill(wps.correction, 0, count, 0);
+
+        return wps.correction;
+    }
+
+    // Add the corrections from the "wvc" bitstream to the decorrelated (lossy)
+    // samples, which gives back the original lossless samples. This comes
+    // before any joint stereo is undone because the corrections are made in
+    // the same domain as the residuals. If the block was noise shaped, the
+    // shaping that the encoder added is taken off at the same time.
+
+    static void apply_correction(WavpackStream wps, int [] buffer, long sample_count, int bufferStartPos)
+    {
+        long flags = wps.wphdr.flags;
+        int correction [] = wps.correction;
+        int channels = (flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) != 0 ? 1 : 2;
+        int count = (int) sample_count * channels;
+
+        if ((flags & Defines.HYBRID_SHAPE) == 0)
+        {
+            for (int q = 0; q < count; q++)
+                buffer[bufferStartPos + q] += correction[q];
+
+            return;
+        }
+
+        for (int q = 0; q < count; q++)
+        {
+            int chan = q % channels;
+            int shaping_weight = (wps.dc_shaping_acc[chan] += wps.dc_shaping_delta[chan]) >> 16;
+            int temp = -(int) (((long) shaping_weight * wps.dc_error[chan] + 512) >> 10);
+
+            if ((flags & Defines.NEW_SHAPING) != 0 && shaping_weight < 0 && temp != 0)
+            {
+                if (temp == wps.dc_error[chan])
+                    temp = (temp < 0) ? temp + 1 : temp - 1;
+
+                wps.dc_error[chan] = temp - correction[q];
+            }
+            else
+                wps.dc_error[chan] = -correction[q];
+
+            buffer[bufferStartPos + q] += correction[q] - temp;
+        }
+    }
+
     static void decorr_stereo_pass(decorr_pass dpp, int [] buffer, long sample_count, int buf_idx)
     {
         int delta = dpp.delta;
@@ -961,19 +1455,8 @@ class UnpackUtils
 
                 if (m != 0)
                 {
-                    int [] temp_samples = new int[Defines.MAX_TERM];
-                    
-                    System.arraycopy(dpp.samples_A, 0, temp_samples, 0, dpp.samples_A.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_A[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
-
-                    System.arraycopy(dpp.samples_B, 0, temp_samples, 0, dpp.samples_B.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_B[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
+                    rotate_samples(dpp.samples_A, m);
+                    rotate_samples(dpp.samples_B, m);
                 }
 
                 break;
@@ -983,6 +1466,27 @@ class UnpackUtils
         dpp.weight_B = weight_B;
     }
 
+    // Rotate a circular history of decorrelation samples left by m places, so
+    // the sample at index m moves to index 0. This is done in place with three
+    // reversals rather than through a temporary array.
+
+    static void rotate_samples(int [] samples, int m)
+    {
+        reverse_samples(samples, 0, m - 1);
+        reverse_samples(samples, m, Defines.MAX_TERM - 1);
+        reverse_samples(samples, 0, Defines.MAX_TERM - 1);
+    }
+
+    static void reverse_samples(int [] samples, int lo, int hi)
+    {
+        while (lo < hi)
+        {
+            int temp = samples[lo];
+            samples[lo++] = samples[hi];
+            samples[hi--] = temp;
+        }
+    }
+
     static void decorr_stereo_pass_cont(decorr_pass dpp, int [] buffer, long sample_count, int buf_idx)
     {
         int delta = dpp.delta, weight_A = dpp.weight_A, weight_B = dpp.weight_B;
@@ -1497,19 +2001,8 @@ class UnpackUtils
 
                 if (m != 0)
                 {
-                    int [] temp_samples = new int[Defines.MAX_TERM];
-                    
-                    System.arraycopy(dpp.samples_A, 0, temp_samples, 0, dpp.samples_A.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_A[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
-
-                    System.arraycopy(dpp.samples_B, 0, temp_samples, 0, dpp.samples_B.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_B[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
+                    rotate_samples(dpp.samples_A, m);
+                    rotate_samples(dpp.samples_B, m);
                 }
 
                 break;
@@ -1838,14 +2331,7 @@ class UnpackUtils
 
                 if (m != 0)
                 {
-                    int [] temp_samples = new int[Defines.MAX_TERM];
-
-                    System.arraycopy(dpp.samples_A, 0, temp_samples, 0, dpp.samples_A.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_A[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
-
+                    rotate_samples(dpp.samples_A, m);
                 }
 
                 break;
@@ -1938,14 +2424,7 @@ class UnpackUtils
 
                 if (m != 0)
                 {
-                    int [] temp_samples = new int[Defines.MAX_TERM];
-
-                    System.arraycopy(dpp.samples_A, 0, temp_samples, 0, dpp.samples_A.length);
-
-                    for (k = 0; k < Defines.MAX_TERM; k++,
-                    m++)
-                        dpp.samples_A[k] = temp_samples[m & (Defines.MAX_TERM - 1)];
-
+                    rotate_samples(dpp.samples_A, m);
                 }
 
                 break;
@@ -1959,15 +2438,32 @@ class UnpackUtils
     // operations. First, if the data is 32-bit float data, then that conversion
     // is done in the float.c module (whether lossy or lossless) and we return.
     // Otherwise, if the extended integer data applies, then that operation is
-    // executed first. If the unpacked data is lossy (and not corrected) then
-    // it is clipped and shifted in a single operation. Otherwise, if it's
-    // lossless then the last step is to apply the final shift (if any).
-
-    static void fixup_samples(WavpackStream wps, int [] buffer, long sample_count, int bufferStartPos)
+    // executed first (exactly, if the block has a wvx bitstream). If the
+    // unpacked data is lossy (and not corrected) then it is clipped and
+    // shifted in a single operation. Otherwise, if it's lossless then the
+    // last step is to apply the final shift (if any). With
+    // float_bits set float data is instead rebuilt into the original IEEE
+    // floats, whose bits are left in the buffer, and nothing else is done.
+    // If out is not null the final values are stored there, by the same loop
+    // that clips and shifts them, rather than back into the buffer.
+
+    static void fixup_samples(WavpackStream wps, int [] buffer, long sample_count, int bufferStartPos,
+        boolean float_bits, WavpackOutput out)
     {
         long flags = wps.wphdr.flags;
         int shift = (int) ((flags & Defines.SHIFT_MASK) >> Defines.SHIFT_LSB);
 
+        if ((flags & Defines.FLOAT_DATA) > 0 && float_bits)
+        {
+            // only the values actually unpacked, as the wvx bitstream goes with them
+
+            if ((flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0)
+                sample_count *= 2;
+
+            FloatUtils.float_bits(wps, buffer, sample_count, bufferStartPos, out);
+            return;
+        }
+
         if ((flags & Defines.FLOAT_DATA) > 0)
         {
             long sc = 0;
@@ -2002,91 +2498,112 @@ class UnpackUtils
                 count = sample_count * 2;
             }
 
-            if ((flags & Defines.HYBRID_FLAG) == 0 && sent_bits == 0 && (zeros + ones + dups) != 0)
-                while (count > 0)
+            if (wps.wvx_open)
+            {
+                // the low bits that were not sent in the samples come from the
+                // wvx bitstream, so the values are rebuilt exactly (only those
+                // actually unpacked, as the bitstream goes with them)
+
+                Bitstream bs = wps.wvxbits;
+                int crc = (int) wps.crc_x;
+                int end = bufferStartPos + (int) ((flags & Defines.FALSE_STEREO) != 0 ? sample_count : count);
+
+                wps.wvx_used = true;
+
+                for (; buffer_counter < end; buffer_counter++)
                 {
+                    int value = buffer[buffer_counter];
+
+                    if (sent_bits != 0)
+                        value = value << sent_bits | (int) BitsUtils.getbits(sent_bits, bs);
+
                     if (zeros != 0)
-                        buffer[buffer_counter] <<= zeros;
+                        value <<= zeros;
 
                     else if (ones != 0)
-                        buffer[buffer_counter] = ((buffer[buffer_counter] + 1) << ones) - 1;
+                        value = ((value + 1) << ones) - 1;
 
                     else if (dups != 0)
-                        buffer[buffer_counter] = ((buffer[buffer_counter] + (buffer[buffer_counter] & 1)) << dups)
-                            - (buffer[buffer_counter] & 1);
+                        value = ((value + (value & 1)) << dups) - (value & 1);
 
-                    buffer_counter++;
-                    count--;
+                    crc = crc * 9 + (value & 0xffff) * 3 + (value >>> 16);
+                    buffer[buffer_counter] = value;
                 }
+
+                wps.crc_x = crc;
+            }
+            else if ((flags & Defines.HYBRID_FLAG) == 0 && sent_bits == 0 && (zeros + ones + dups) != 0)
+            {
+                int end = bufferStartPos + (int) count;
+
+                if (zeros != 0)
+                    SampleKernels.kernels.shift(buffer, bufferStartPos, end, zeros);
+                else if (ones != 0)
+                    SampleKernels.kernels.shift_ones(buffer, bufferStartPos, end, ones);
+                else
+                    SampleKernels.kernels.shift_dups(buffer, bufferStartPos, end, dups);
+            }
             else
                 shift += zeros + sent_bits + ones + dups;
         }
 
-        if ((flags & Defines.HYBRID_FLAG) > 0)
+        if (out != null)
         {
-            int min_value, max_value, min_shifted, max_shifted;
-            int buffer_counter = bufferStartPos;
+            int min_value = Integer.MIN_VALUE, max_value = Integer.MAX_VALUE;
 
-            switch ((int) (flags & (long) Defines.BYTES_STORED))
+            if ((flags & Defines.HYBRID_FLAG) > 0)
             {
-                case 0:
-                    min_shifted = (min_value = -128 >> shift) << shift;
-                    max_shifted = (max_value = 127 >> shift) << shift;
-                    break;
-
-                case 1:
-                    min_shifted = (min_value = -32768 >> shift) << shift;
-                    max_shifted = (max_value = 32767 >> shift) << shift;
-                    break;
-
-                case 2:
-                    min_shifted = (min_value = -8388608 >> shift) << shift;
-                    max_shifted = (max_value = 8388607 >> shift) << shift;
-                    break;
-
-                case 3:
-                default:
-                    min_shifted = (min_value = 0x80000000 >> shift) << shift;
-                    max_shifted = (max_value = 0x7FFFFFFF >> shift) << shift;
-                    break;
+                min_value = min_value(flags, shift);
+                max_value = ~min_value;
             }
 
             if ((flags & Defines.MONO_FLAG) == 0)
                 sample_count *= 2;
 
-            while (sample_count > 0)
-            {
-                if (buffer[buffer_counter] < min_value)
-                    buffer[buffer_counter] = min_shifted;
-
-                else if (buffer[buffer_counter] > max_value)
-                    buffer[buffer_counter] = max_shifted;
+            out.store(buffer, bufferStartPos, (int) sample_count, out.index, min_value, max_value, shift);
+        }
+        else if ((flags & Defines.HYBRID_FLAG) > 0)
+        {
+            int min_value = min_value(flags, shift);
 
-                else
-                    buffer[buffer_counter] <<= shift;
+            if ((flags & Defines.MONO_FLAG) == 0)
+                sample_count *= 2;
 
-                buffer_counter++;
-                sample_count--;
-            }
+            SampleKernels.kernels.clip_shift(buffer, bufferStartPos, bufferStartPos + (int) sample_count, min_value, ~min_value, shift);
         }
         else if (shift != 0)
         {
-
-            int buffer_counter = bufferStartPos;
-
             if ((flags & Defines.MONO_FLAG) == 0)
                 sample_count *= 2;
 
-            while (sample_count > 0)
-            {
-                buffer[buffer_counter] = buffer[buffer_counter] << shift;
-                buffer_counter++;
-                sample_count--;
-            }
+            SampleKernels.kernels.shift(buffer, bufferStartPos, bufferStartPos + (int) sample_count, shift);
         }
     }
 
 
+    // Return the lowest value that lossy samples can have before they are
+    // shifted left by shift, for the sample size in flags. The highest is the
+    // complement of it.
+
+    static int min_value(long flags, int shift)
+    {
+        switch ((int) (flags & (long) Defines.BYTES_STORED))
+        {
+            case 0:
+                return -128 >> shift;
+
+            case 1:
+                return -32768 >> shift;
+
+            case 2:
+                return -8388608 >> shift;
+
+            case 3:
+            default:
+                return 0x80000000 >> shift;
+        }
+    }
+
     // This function checks the crc value(s) for an unpacked block, returning the
     // number of actual crc errors detected for the block. The block must be
     // completely unpacked before this test is valid. For losslessly unpacked
@@ -2099,7 +2616,17 @@ class UnpackUtils
         WavpackStream wps = wpc.stream;
         int result = 0;
 
-        if (wps.crc != wps.wphdr.crc)
+        // with a correction file the samples are checked against its crc
+
+        if (wps.crc != (wps.wvc_open ? wps.wvc_crc : wps.wphdr.crc))
+        {
+            ++result;
+        }
+
+        // the extended crc only covers values completed from the wvx bitstream
+        // (which floats are not, unless unpacked with WavpackUnpackFloatSamples())
+
+        if (wps.wvx_used && wps.crc_x != wps.crc_wvx)
         {
             ++result;
         }
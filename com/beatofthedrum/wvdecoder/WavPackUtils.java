@@ -17,6 +17,11 @@ public class WavPackUtils
 
     ///////////////////////////// local table storage ////////////////////////////
 
+    // When seeking, the file is bisected until the block holding the wanted
+    // sample lies within this many bytes, and the rest is walked block by block.
+
+    static final long SEEK_WALK_BYTES = 65536;
+
     static long sample_rates [] =
     {
         6000, 8000, 9600, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000, 64000, 88200, 96000, 192000
@@ -33,17 +38,102 @@ public class WavPackUtils
     // functions in this module). This can be initiated at the beginning of a
     // WavPack file, or anywhere inside a WavPack file. To determine the exact
     // position within the file use WavpackGetSampleIndex().  Also,
-    // this function will not handle "correction" files, plays only the first
-    // two channels of multi-channel files, and is limited in resolution in some
-    // large integer or floating point files (but always provides at least 24 bits
-    // of resolution).
+    // this function will not handle "correction" files (see below), and is
+    // limited in resolution in some large integer or floating point files (but
+    // always provides at least 24 bits of resolution). All the channels of
+    // multi-channel files are decoded, see WavpackGetChannelMask().
 
     public static WavpackContext WavpackOpenFileInput(java.io.DataInputStream infile)
     {
         WavpackContext wpc = new WavpackContext();
-        WavpackStream wps = wpc.stream;
 
         wpc.infile = infile;
+
+        return open_context(wpc);
+    }
+
+    // This function is the same as WavpackOpenFileInput() above, except that
+    // the "correction" file (.wvc) of a hybrid file is read from wvc_infile
+    // alongside the main file, and the corrections are applied as the samples
+    // are unpacked to restore the original lossless audio. The blocks of the
+    // two files are matched up by their sample index, and the correction file
+    // is read a block ahead in the background. Blocks that have no correction
+    // are unpacked lossy, which shows in WavpackGetMode().
+
+    public static WavpackContext WavpackOpenFileInput(java.io.DataInputStream infile,
+        java.io.DataInputStream wvc_infile)
+    {
+        return WavpackOpenFileInput(infile, wvc_infile, WavpackCorrectionReader.READ_AHEAD);
+    }
+
+    // As above, with the correction file read ahead on the specified executor
+    // instead of on the decoder's own read-ahead threads. The reads block on
+    // I/O, so this should not be a pool used for decoding.
+
+    public static WavpackContext WavpackOpenFileInput(java.io.DataInputStream infile,
+        java.io.DataInputStream wvc_infile, java.util.concurrent.Executor executor)
+    {
+        WavpackContext wpc = new WavpackContext();
+
+        wpc.infile = infile;
+        wpc.wvc = new WavpackCorrectionReader(wvc_infile, executor);
+
+        return open_context(wpc);
+    }
+
+    // This function is the same as WavpackOpenFileInput() above, except that
+    // the WavPack data is read straight out of the specified buffer starting at
+    // its current position (the buffer itself is not modified). This is
+    // normally a MappedByteBuffer from WavpackOpenFileMapped(), so the audio
+    // bitstream is decoded from the mapped pages without being copied.
+
+    public static WavpackContext WavpackOpenFileInput(java.nio.ByteBuffer buffer)
+    {
+        WavpackContext wpc = new WavpackContext();
+
+        wpc.mapped = buffer.duplicate();
+
+        return open_context(wpc);
+    }
+
+    // Memory-map the whole file open on the specified channel and open it with
+    // WavpackOpenFileInput() above. The mapping stays valid after the channel
+    // is closed. Files larger than 2 gigabytes cannot be mapped in one piece
+    // and give an error.
+
+    public static WavpackContext WavpackOpenFileMapped(java.nio.channels.FileChannel channel)
+    {
+        java.nio.MappedByteBuffer buffer;
+
+        try
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                WavpackContext wpc = new WavpackContext();
+                wpc.error = true;
+                wpc.error_message = "file is too large to map!";
+                return wpc;
+            }
+
+            buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (java.io.IOException e)
+        {
+            WavpackContext wpc = new WavpackContext();
+            wpc.error = true;
+            wpc.error_message = "can't map file!";
+            return wpc;
+        }
+
+        return WavpackOpenFileInput(buffer);
+    }
+
+    // Read the first block of an opened context and fill in the configuration.
+
+    static WavpackContext open_context(WavpackContext wpc)
+    {
+        WavpackStream wps = wpc.stream;
+
         wpc.total_samples = -1;
         wpc.norm_offset = 0;
         wpc.open_flags = 0;
@@ -54,7 +144,7 @@ public class WavPackUtils
         while (wps.wphdr.block_samples == 0)
         {
 
-            wps.wphdr = read_next_header(wpc.infile, wps.wphdr);
+            wps.wphdr = read_next_header(wpc, wps.wphdr);
 
             if (wps.wphdr.status == 1)
             {
@@ -68,11 +158,29 @@ public class WavPackUtils
                 wpc.total_samples = wps.wphdr.total_samples;
             }
 
+            // a block that is not the final one of its segment means a
+            // multichannel file, which is then read a whole segment at a time
+
+            if (wps.wphdr.block_samples > 0 && (wps.wphdr.flags & Defines.FINAL_BLOCK) == 0)
+            {
+                if (read_segment(wpc, wps.wphdr) == Defines.FALSE)
+                {
+                    if (wpc.error_message.length() == 0)
+                        wpc.error_message = "invalid multichannel segment!";
+
+                    wpc.error = true;
+                    return wpc;
+                }
+
+                wps = wpc.stream;
+                break;
+            }
+
             // lets put the stream back in the context
 
             wpc.stream = wps;
 
-            if ((UnpackUtils.unpack_init(wpc)) == Defines.FALSE)
+            if ((init_block(wpc)) == Defines.FALSE)
             {
                 wpc.error = true;
                 return wpc;
@@ -111,167 +219,1036 @@ public class WavPackUtils
             }
             else
             {
-                wpc.config.num_channels = 2;
+                wpc.config.num_channels = 2;
+            }
+
+            wpc.config.channel_mask = 0x5 - wpc.config.num_channels;
+        }
+
+        if (wpc.streams != null)
+            wpc.reduced_channels = segment_channels(wpc);
+
+        return wpc;
+    }
+
+    // Return a context that has been used for another file to the state of a
+    // new WavpackContext, ready for open_context() once its input is set. The
+    // buffers it has grown (bitstreams, metadata, block and sample buffers, the
+    // stream contexts of multichannel files) are kept for the next file. Any
+    // read ahead of the previous correction file is waited for first, so
+    // nothing touches the old inputs afterwards.
+
+    static void reset_context(WavpackContext wpc)
+    {
+        close_context(wpc);
+
+        wpc.config.bits_per_sample = wpc.config.bytes_per_sample = 0;
+        wpc.config.num_channels = wpc.config.float_norm_exp = 0;
+        wpc.config.flags = wpc.config.sample_rate = wpc.config.channel_mask = 0;
+
+        wpc.error_message = "";
+        wpc.error = false;
+        wpc.infile = null;
+        wpc.mapped = null;
+
+        if (!wraps_block_data(wpc))
+            wpc.block = null;	// a view of the old input
+        wpc.channel = null;
+        wpc.wvc = null;
+        wpc.block_index = null;
+        wpc.stream_pool = null;
+        wpc.float_output = false;
+        wpc.output.close();
+        wpc.num_streams = 0;
+        wpc.total_samples = wpc.crc_errors = wpc.first_flags = 0;
+        wpc.open_flags = wpc.norm_offset = 0;
+        wpc.reduced_channels = 0;
+        wpc.lossy_blocks = 0;
+        wpc.status = 0;
+
+        // the stream contexts of a multichannel file are put aside until the
+        // next one, and the context gets its own stream back
+
+        if (wpc.streams != null)
+        {
+            wpc.spare_streams = wpc.streams;
+            wpc.streams = null;
+
+            if (wpc.own_stream != null)
+                wpc.stream = wpc.own_stream;
+        }
+
+        UnpackUtils.reset_stream(wpc.stream);
+
+        for (int s = 0; wpc.spare_streams != null && s < wpc.spare_streams.length; s++)
+        {
+            WavpackContext sub = wpc.spare_streams[s];
+
+            if (sub != null)
+            {
+                sub.error_message = "";
+                sub.error = false;
+                sub.wvc = null;
+                sub.float_output = false;
+                sub.crc_errors = 0;
+                sub.lossy_blocks = 0;
+
+                if (!wraps_block_data(sub))
+                    sub.block = null;
+
+                UnpackUtils.reset_stream(sub.stream);
+            }
+        }
+    }
+
+    // Wait for any read ahead of the correction file to finish, so that the
+    // caller can close it.
+
+    static void close_context(WavpackContext wpc)
+    {
+        if (wpc.wvc != null)
+            wpc.wvc.peek();
+    }
+
+    // This function is the same as WavpackOpenFileInput() above, except that
+    // the WavPack data is read from a seekable channel (for example a
+    // FileChannel) starting at its current position. Only a context opened
+    // this way can be repositioned with WavpackSeekSample().
+
+    public static WavpackContext WavpackOpenFileInput(java.nio.channels.SeekableByteChannel channel)
+    {
+        WavpackContext wpc = WavpackOpenFileInput(open_channel_stream(channel));
+
+        wpc.channel = channel;
+
+        return wpc;
+    }
+
+    // As above, but the block index (see WavpackBlockIndex) is kept with the
+    // context so WavpackSeekSample() can go straight to the right block
+    // instead of searching the file. The index must have been built from
+    // the same file.
+
+    public static WavpackContext WavpackOpenFileInput(java.nio.channels.SeekableByteChannel channel,
+        WavpackBlockIndex index)
+    {
+        WavpackContext wpc = WavpackOpenFileInput(channel);
+
+        wpc.block_index = index;
+
+        return wpc;
+    }
+
+    // This function obtains general information about an open file and returns
+    // a mask with the following bit values:
+
+    // MODE_WVC:  file was opened with its correction file
+    // MODE_LOSSLESS:  file is lossless (either pure or hybrid with correction)
+    // MODE_HYBRID:  file is hybrid mode (either lossy or lossless)
+    // MODE_FLOAT:  audio data is 32-bit ieee floating point (but will provided
+    //               in 24-bit integers for convenience, unless unpacked with
+    //               WavpackUnpackFloatSamples())
+    // MODE_HIGH:  file was created in "high" mode (information only)
+    // MODE_FAST:  file was created in "fast" mode (information only)
+
+    
+    public static int WavpackGetMode (WavpackContext wpc)
+    {
+        int mode = 0;
+    
+        if (null != wpc) 
+        {
+            if ( (wpc.config.flags & Defines.CONFIG_HYBRID_FLAG) != 0)
+                mode |= Defines.MODE_HYBRID;
+            else if ((wpc.config.flags & Defines.CONFIG_LOSSY_MODE)==0)
+                mode |= Defines.MODE_LOSSLESS;
+
+            if (wpc.wvc != null)
+                mode |= (Defines.MODE_LOSSLESS | Defines.MODE_WVC);
+    
+            if (wpc.lossy_blocks != 0)
+                mode &= ~Defines.MODE_LOSSLESS;
+    
+            if ( (wpc.config.flags & Defines.CONFIG_FLOAT_DATA) != 0)
+                mode |= Defines.MODE_FLOAT;
+    
+            if ( (wpc.config.flags & Defines.CONFIG_HIGH_FLAG) != 0)
+                mode |= Defines.MODE_HIGH;
+    
+            if ( (wpc.config.flags & Defines.CONFIG_FAST_FLAG) != 0)
+                mode |= Defines.MODE_FAST;
+        }
+    
+        return mode;
+    }
+    
+
+    // Unpack the specified number of samples from the current file position.
+    // Note that "samples" here refers to "complete" samples, which would be
+    // 2 longs for stereo files. The audio data is returned right-justified in
+    // 32-bit longs in the endian mode native to the executing processor. So,
+    // if the original data was 16-bit, then the values returned would be
+    // +/-32k. Floating point data will be returned as 24-bit integers (and may
+    // also be clipped; see WavpackUnpackFloatSamples() for the exact floats).
+    // The actual number of samples unpacked is returned, which should be equal
+    // to the number requested unless the end of file is encountered or an
+    // error occurs.
+
+    public static long WavpackUnpackSamples(WavpackContext wpc, int [] buffer, long samples)
+    {
+        return unpack_samples(wpc, buffer, samples, false);
+    }
+
+    // Unpack the rest of the current block or, if that has all been returned,
+    // the whole of the next block, into the buffer. No more samples than fit
+    // in the buffer are unpacked, in which case the rest of the block comes
+    // back from the next call. Decoding a block in one go like this avoids
+    // the per-call overhead of WavpackUnpackSamples() for small counts; use
+    // WavpackGetBlockSamples() to size the buffer. The number of complete
+    // samples unpacked is returned, which is 0 at the end of the file or if
+    // an error occurs.
+
+    public static long WavpackUnpackBlock(WavpackContext wpc, int [] buffer)
+    {
+        return unpack_samples(wpc, buffer, buffer.length / WavpackGetReducedChannels(wpc), true);
+    }
+
+    // Unpack the specified number of samples as floats. Where the file holds
+    // 32-bit floating point data the original floats are rebuilt exactly (at
+    // least when the file is lossless and has the extra "wvx" information
+    // that float files normally do) rather than being turned into the 24-bit
+    // integers of WavpackUnpackSamples(), so nothing is clipped or rounded.
+    // For integer files the samples are simply the integer values, as floats.
+    // The actual number of samples unpacked is returned, as for
+    // WavpackUnpackSamples().
+
+    public static long WavpackUnpackFloatSamples(WavpackContext wpc, float [] buffer, long samples)
+    {
+        return unpack_floats(wpc, buffer, 0, samples, false);
+    }
+
+    // Same as WavpackUnpackFloatSamples() above, but the floats are put into
+    // the FloatBuffer at its current position, which is advanced past them.
+    // No more samples are unpacked than fit in the remaining space.
+
+    public static long WavpackUnpackFloatSamples(WavpackContext wpc, java.nio.FloatBuffer buffer, long samples)
+    {
+        return unpack_floats(wpc, buffer, samples, false);
+    }
+
+    // Unpack the specified number of samples as floats normalized to the
+    // range -1.0 to +1.0, ready for processing. Integer samples are scaled
+    // by the full scale of the file's sample size (so the most negative
+    // value becomes exactly -1.0), in the same loop that turns them into
+    // floats. Floating point data is rebuilt exactly as by
+    // WavpackUnpackFloatSamples(), and only scaled if the file was not
+    // stored normalized to +/-1.0. The actual number of samples unpacked is
+    // returned, as for WavpackUnpackSamples().
+
+    public static long WavpackUnpackNormalizedSamples(WavpackContext wpc, float [] buffer, long samples)
+    {
+        return unpack_floats(wpc, buffer, 0, samples, true);
+    }
+
+    // Same as WavpackUnpackNormalizedSamples() above, but into a FloatBuffer
+    // as for WavpackUnpackFloatSamples().
+
+    public static long WavpackUnpackNormalizedSamples(WavpackContext wpc, java.nio.FloatBuffer buffer, long samples)
+    {
+        return unpack_floats(wpc, buffer, samples, true);
+    }
+
+    // Unpack floats into a FloatBuffer for the functions above. The floats
+    // go straight into the array of a heap buffer; others are filled from the
+    // context's float_buffer with one bulk put.
+
+    static long unpack_floats(WavpackContext wpc, java.nio.FloatBuffer buffer, long samples, boolean normalize)
+    {
+        int num_channels = WavpackGetReducedChannels(wpc);
+        long unpacked;
+
+        if (samples > buffer.remaining() / num_channels)
+            samples = buffer.remaining() / num_channels;
+
+        if (buffer.hasArray())
+        {
+            unpacked = unpack_floats(wpc, buffer.array(), buffer.arrayOffset() + buffer.position(), samples, normalize);
+            buffer.position(buffer.position() + (int) unpacked * num_channels);
+        }
+        else
+        {
+            if (wpc.float_buffer == null || wpc.float_buffer.length < samples * num_channels)
+                wpc.float_buffer = new float[(int) samples * num_channels];
+
+            unpacked = unpack_floats(wpc, wpc.float_buffer, 0, samples, normalize);
+            buffer.put(wpc.float_buffer, 0, (int) unpacked * num_channels);
+        }
+
+        return unpacked;
+    }
+
+    // Unpack the specified number of samples and store them in the buffer
+    // from offset as floats, normalized or not. Float data is rebuilt into
+    // IEEE floats and integers converted to floats, with any scaling done at
+    // the same time, by the last loop that unpacks them.
+
+    static long unpack_floats(WavpackContext wpc, float [] buffer, int offset, long samples, boolean normalize)
+    {
+        float scale = 1.0f;
+        boolean bits = (wpc.config.flags & Defines.CONFIG_FLOAT_DATA) != 0;
+
+        if (normalize && bits && wpc.config.float_norm_exp != 127 && wpc.config.float_norm_exp != 0)
+            scale = (float) Math.pow(2, 127 - wpc.config.float_norm_exp);
+        else if (normalize && !bits)
+            scale = 1.0f / (1L << (WavpackGetBytesPerSample(wpc) * 8 - 1));
+
+        wpc.output.open_floats(buffer, offset, scale, bits);
+        wpc.float_output = true;
+
+        try
+        {
+            return unpack_samples(wpc, sample_buffer(wpc), samples, false);
+        }
+        finally
+        {
+            wpc.float_output = false;
+            wpc.output.kind = WavpackOutput.INTS;
+            wpc.output.floats = null;
+        }
+    }
+
+    // Unpack the specified number of samples as 16-bit values, which takes
+    // half the memory of WavpackUnpackSamples() for the usual 16-bit (or
+    // 8-bit) files. For those the values are the same as from
+    // WavpackUnpackSamples(). Samples of more than 16 bits (24-bit and 32-bit
+    // integers, and float files, whose samples are the 24-bit integers of
+    // WavpackUnpackSamples()) are narrowed to their top 16 bits by an
+    // arithmetic shift right of WavpackGetBytesPerSample() * 8 - 16 bits,
+    // which truncates toward minus infinity with no rounding or dither; use
+    // WavpackUnpackSamples() or WavpackUnpackFloatSamples() to keep them
+    // whole. The actual number of samples unpacked is returned, as for
+    // WavpackUnpackSamples().
+
+    public static long WavpackUnpackShortSamples(WavpackContext wpc, short [] buffer, long samples)
+    {
+        return unpack_shorts(wpc, buffer, 0, samples);
+    }
+
+    // Same as WavpackUnpackShortSamples() above, but the values are put into
+    // the ShortBuffer at its current position, which is advanced past them.
+    // No more samples are unpacked than fit in the remaining space.
+
+    public static long WavpackUnpackShortSamples(WavpackContext wpc, java.nio.ShortBuffer buffer, long samples)
+    {
+        int num_channels = WavpackGetReducedChannels(wpc);
+        long unpacked;
+
+        if (samples > buffer.remaining() / num_channels)
+            samples = buffer.remaining() / num_channels;
+
+        if (buffer.hasArray())
+        {
+            unpacked = unpack_shorts(wpc, buffer.array(), buffer.arrayOffset() + buffer.position(), samples);
+            buffer.position(buffer.position() + (int) unpacked * num_channels);
+        }
+        else
+        {
+            if (wpc.short_buffer == null || wpc.short_buffer.length < samples * num_channels)
+                wpc.short_buffer = new short[(int) samples * num_channels];
+
+            unpacked = unpack_shorts(wpc, wpc.short_buffer, 0, samples);
+            buffer.put(wpc.short_buffer, 0, (int) unpacked * num_channels);
+        }
+
+        return unpacked;
+    }
+
+    // Unpack the specified number of samples and store them in the buffer from
+    // offset as shorts, narrowed by the last loop that unpacks them. 16-bit
+    // and smaller samples are decoded with the ordinary (not 24-bit)
+    // decorrelation passes, so the values always fit.
+
+    static long unpack_shorts(WavpackContext wpc, short [] buffer, int offset, long samples)
+    {
+        wpc.output.open_shorts(buffer, offset, Math.max(0, WavpackGetBytesPerSample(wpc) * 8 - 16));
+
+        try
+        {
+            return unpack_samples(wpc, sample_buffer(wpc), samples, false);
+        }
+        finally
+        {
+            wpc.output.kind = WavpackOutput.INTS;
+            wpc.output.shorts = null;
+        }
+    }
+
+    // Unpack the specified number of samples as packed little-endian PCM, as
+    // it would be in a wav file, into the ByteBuffer (which may be direct)
+    // at its current position, which is advanced past it. Each value takes
+    // WavpackGetBytesPerSample() bytes, with 8-bit samples made unsigned. No
+    // more samples are unpacked than fit in the remaining space. The buffer's
+    // byte order is left alone, as the samples are written through a
+    // little-endian view of it by the last loop that unpacks them. The actual
+    // number of samples unpacked is returned, as for WavpackUnpackSamples().
+
+    public static long WavpackUnpackPcmSamples(WavpackContext wpc, java.nio.ByteBuffer buffer, long samples)
+    {
+        int num_channels = WavpackGetReducedChannels(wpc);
+        int bps = WavpackGetBytesPerSample(wpc);
+        long unpacked;
+
+        if (samples > buffer.remaining() / (bps * num_channels))
+            samples = buffer.remaining() / (bps * num_channels);
+
+        wpc.output.open_pcm(buffer, bps);
+
+        try
+        {
+            unpacked = unpack_samples(wpc, sample_buffer(wpc), samples, false);
+        }
+        finally
+        {
+            wpc.output.kind = WavpackOutput.INTS;
+        }
+
+        buffer.position(buffer.position() + (int) unpacked * num_channels * bps);
+
+        return unpacked;
+    }
+
+    // Return the context's sample_buffer, which holds OUTPUT_SAMPLES stereo
+    // samples as they are unpacked for one of the outputs other than ints.
+
+    static int [] sample_buffer(WavpackContext wpc)
+    {
+        if (wpc.sample_buffer == null)
+            wpc.sample_buffer = new int[Defines.OUTPUT_SAMPLES * 2];
+
+        return wpc.sample_buffer;
+    }
+
+    // Unpack up to the specified number of samples, stopping early at the end
+    // of a block if block_end is set. Unless the context's output is INTS the
+    // samples are stored there, and the buffer is only the sample_buffer that
+    // they are unpacked in, a stretch of at most OUTPUT_SAMPLES at a time.
+
+    static long unpack_samples(WavpackContext wpc, int [] buffer, long samples, boolean block_end)
+    {
+        WavpackStream wps = wpc.stream;
+        WavpackOutput out = wpc.output.kind != WavpackOutput.INTS ? wpc.output : null;
+        long samples_unpacked = 0, samples_to_unpack;
+        int num_channels = wpc.config.num_channels;
+
+        int buf_idx = 0;
+        int bytes_returned = 0;
+
+        if (wpc.streams != null)
+            return unpack_segments(wpc, buffer, samples, block_end);
+
+        while (samples > 0)
+        {
+            if (wps.wphdr.block_samples == 0 || (wps.wphdr.flags & Defines.INITIAL_BLOCK) == 0
+                || wps.sample_index >= wps.wphdr.block_index
+                + wps.wphdr.block_samples)
+            {
+
+                wps.wphdr = read_next_header(wpc, wps.wphdr);
+
+                if (wps.wphdr.status == 1)
+                    break;
+
+                if (wps.wphdr.block_samples == 0 || wps.sample_index == wps.wphdr.block_index)
+                {
+                    if ((init_block(wpc)) == Defines.FALSE)
+                        break;
+                }
+            }
+
+            if (wps.wphdr.block_samples == 0 || (wps.wphdr.flags & Defines.INITIAL_BLOCK) == 0
+                || wps.sample_index >= wps.wphdr.block_index
+                + wps.wphdr.block_samples)
+                continue;
+
+            if (wps.sample_index < wps.wphdr.block_index)
+            {
+                samples_to_unpack = wps.wphdr.block_index - wps.sample_index;
+
+                if (samples_to_unpack > samples)
+                    samples_to_unpack = samples;
+
+                wps.sample_index += samples_to_unpack;
+                samples_unpacked += samples_to_unpack;
+                samples -= samples_to_unpack;
+
+                if (wpc.reduced_channels > 0)
+                    samples_to_unpack *= wpc.reduced_channels;
+                else
+                    samples_to_unpack *= num_channels;
+
+                if (out != null)
+                    out.zero(buf_idx, (int) samples_to_unpack);
+                else
+                    java.util.Arrays.fill(buffer, buf_idx, buf_idx + (int) samples_to_unpack, 0);
+
+                buf_idx += (int) samples_to_unpack;
+
+                continue;
+            }
+
+            samples_to_unpack = wps.wphdr.block_index + wps.wphdr.block_samples - wps.sample_index;
+
+            if (samples_to_unpack > samples)
+                samples_to_unpack = samples;
+
+            if (out != null)
+            {
+                if (samples_to_unpack > buffer.length / 2)
+                    samples_to_unpack = buffer.length / 2;
+
+                out.index = buf_idx;
+                UnpackUtils.unpack_samples(wpc, buffer, samples_to_unpack, 0);
+            }
+            else
+                UnpackUtils.unpack_samples(wpc, buffer, samples_to_unpack, buf_idx);
+
+            if (wpc.reduced_channels > 0)
+                bytes_returned = (int) (samples_to_unpack * wpc.reduced_channels);
+            else
+                bytes_returned = (int) (samples_to_unpack * num_channels);
+
+            buf_idx += bytes_returned;
+
+            samples_unpacked += samples_to_unpack;
+            samples -= samples_to_unpack;
+
+            if (wps.sample_index == wps.wphdr.block_index + wps.wphdr.block_samples)
+            {
+                if (UnpackUtils.check_crc_error(wpc) > 0)
+                    wpc.crc_errors++;
+
+                if (block_end)
+                    break;
+            }
+
+            if (wps.sample_index == wpc.total_samples)
+                break;
+        }
+
+        return (samples_unpacked);
+    }
+
+    // This is unpack_samples() for multichannel files. Every stream of the
+    // current segment is unpacked into its own buffer and the channels are
+    // then interleaved in the order of the blocks in the segment, which is
+    // the order of the speakers in the channel mask. Unless the context's
+    // output is INTS the interleaving stores the samples there, and the
+    // buffer is not used.
+
+    static long unpack_segments(WavpackContext wpc, int [] buffer, long samples, boolean block_end)
+    {
+        WavpackStream wps = wpc.stream;
+        WavpackOutput out = wpc.output.kind != WavpackOutput.INTS ? wpc.output : null;
+        long samples_unpacked = 0, samples_to_unpack;
+        int num_channels = wpc.reduced_channels;
+        int buf_idx = 0;
+
+        while (samples > 0 && wpc.num_streams > 0)
+        {
+            if (wps.sample_index >= wps.wphdr.block_index + wps.wphdr.block_samples)
+            {
+                long sample_index = wps.sample_index;
+
+                if (read_segment(wpc, read_next_header(wpc, wpc.segment_header)) == Defines.FALSE)
+                    break;
+
+                wps = wpc.stream;
+
+                if (sample_index < wps.wphdr.block_index)
+                {
+                    for (int s = 0; s < wpc.num_streams; s++)
+                        wpc.streams[s].stream.sample_index = sample_index;
+                }
+            }
+
+            if (wps.sample_index < wps.wphdr.block_index)
+            {
+                samples_to_unpack = wps.wphdr.block_index - wps.sample_index;
+
+                if (samples_to_unpack > samples)
+                    samples_to_unpack = samples;
+
+                for (int s = 0; s < wpc.num_streams; s++)
+                    wpc.streams[s].stream.sample_index += samples_to_unpack;
+
+                if (out != null)
+                    out.zero(buf_idx, (int) samples_to_unpack * num_channels);
+                else
+                    java.util.Arrays.fill(buffer, buf_idx, buf_idx + (int) samples_to_unpack * num_channels, 0);
+
+                buf_idx += (int) samples_to_unpack * num_channels;
+                samples_unpacked += samples_to_unpack;
+                samples -= samples_to_unpack;
+
+                continue;
+            }
+
+            samples_to_unpack = wps.wphdr.block_index + wps.wphdr.block_samples - wps.sample_index;
+
+            if (samples_to_unpack > samples)
+                samples_to_unpack = samples;
+
+            unpack_streams(wpc, samples_to_unpack);
+
+            int channel = 0;
+
+            for (int s = 0; s < wpc.num_streams; s++)
+            {
+                int [] stream_samples = wpc.streams[s].stream_samples;
+                int bcounter = buf_idx + channel;
+
+                if ((wpc.streams[s].stream.wphdr.flags & Defines.MONO_FLAG) != 0)
+                {
+                    for (int i = 0; i < samples_to_unpack; i++)
+                    {
+                        if (out != null)
+                            out.put(bcounter, stream_samples[i]);
+                        else
+                            buffer[bcounter] = stream_samples[i];
+
+                        bcounter += num_channels;
+                    }
+
+                    channel++;
+                }
+                else
+                {
+                    for (int i = 0; i < samples_to_unpack * 2; i += 2)
+                    {
+                        if (out != null)
+                        {
+                            out.put(bcounter, stream_samples[i]);
+                            out.put(bcounter + 1, stream_samples[i + 1]);
+                        }
+                        else
+                        {
+                            buffer[bcounter] = stream_samples[i];
+                            buffer[bcounter + 1] = stream_samples[i + 1];
+                        }
+
+                        bcounter += num_channels;
+                    }
+
+                    channel += 2;
+                }
+            }
+
+            buf_idx += (int) samples_to_unpack * num_channels;
+            samples_unpacked += samples_to_unpack;
+            samples -= samples_to_unpack;
+
+            if (wps.sample_index == wps.wphdr.block_index + wps.wphdr.block_samples)
+            {
+                for (int s = 0; s < wpc.num_streams; s++)
+                {
+                    if (UnpackUtils.check_crc_error(wpc.streams[s]) > 0)
+                        wpc.crc_errors++;
+                }
+
+                if (block_end)
+                    break;
+            }
+
+            if (wps.sample_index == wpc.total_samples)
+                break;
+        }
+
+        return (samples_unpacked);
+    }
+
+    // Unpack the same stretch of samples from every stream of the segment,
+    // each into its own buffer, either one stream after another or with the
+    // streams after the first handed to the stream pool.
+
+    static void unpack_streams(WavpackContext wpc, long samples)
+    {
+        for (int s = 0; s < wpc.num_streams; s++)
+        {
+            WavpackContext sub = wpc.streams[s];
+
+            if (sub.stream_samples == null || sub.stream_samples.length < samples * 2)
+                sub.stream_samples = new int[(int) samples * 2];
+
+            sub.float_output = wpc.float_output;
+        }
+
+        if (wpc.stream_pool == null || wpc.num_streams == 1)
+        {
+            for (int s = 0; s < wpc.num_streams; s++)
+                UnpackUtils.unpack_samples(wpc.streams[s], wpc.streams[s].stream_samples, samples, 0);
+
+            return;
+        }
+
+        if (wpc.stream_tasks == null || wpc.stream_tasks.length < wpc.num_streams)
+        {
+            wpc.stream_tasks = new StreamTask[wpc.num_streams];
+
+            for (int s = 0; s < wpc.num_streams; s++)
+                wpc.stream_tasks[s] = new StreamTask();
+        }
+
+        for (int s = 1; s < wpc.num_streams; s++)
+        {
+            StreamTask task = wpc.stream_tasks[s];
+
+            task.reinitialize();
+            task.wpc = wpc.streams[s];
+            task.samples = samples;
+            wpc.stream_pool.execute(task);
+        }
+
+        UnpackUtils.unpack_samples(wpc.streams[0], wpc.streams[0].stream_samples, samples, 0);
+
+        for (int s = 1; s < wpc.num_streams; s++)
+            wpc.stream_tasks[s].join();
+    }
+
+    // Unpacks one stream of a segment for unpack_streams().
+
+    static class StreamTask extends java.util.concurrent.RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;	// never serialized, RecursiveAction is Serializable
+
+        WavpackContext wpc;
+        long samples;
+
+        protected void compute()
+        {
+            UnpackUtils.unpack_samples(wpc, wpc.stream_samples, samples, 0);
+        }
+    }
+
+    // Read a complete multichannel segment, starting with the block whose
+    // header has just been read into wphdr and ending with the block that has
+    // the FINAL_BLOCK flag. Each block gets a stream of its own which is
+    // initialized ready for unpacking, and the context's stream becomes the
+    // first of them. Blocks outside a proper segment are skipped over. FALSE
+    // is returned at the end of the data or if a block could not be
+    // initialized, after which nothing more is unpacked.
+
+    static int read_segment(WavpackContext wpc, WavpackHeader wphdr)
+    {
+        int count = 0;
+
+        wpc.num_streams = 0;
+
+        while (wphdr.status == 0)
+        {
+            // a new initial block always starts the segment again
+
+            if ((wphdr.flags & Defines.INITIAL_BLOCK) != 0)
+                count = 0;
+
+            WavpackContext sub = stream_context(wpc, count);
+
+            if (frame_block(wpc, wphdr, sub) == Defines.FALSE)
+                return Defines.FALSE;
+
+            if (wphdr.block_samples > 0 && (count == 0 ? (wphdr.flags & Defines.INITIAL_BLOCK) != 0
+                : wphdr.block_index == wpc.streams[0].stream.wphdr.block_index
+                && wphdr.block_samples == wpc.streams[0].stream.wphdr.block_samples))
+            {
+                sub.stream.wphdr = read_next_header(sub.block, sub.stream.wphdr);
+
+                if (UnpackUtils.unpack_init(sub) == Defines.FALSE)
+                {
+                    wpc.error = true;
+                    wpc.error_message = sub.error_message;
+                    return Defines.FALSE;
+                }
+
+                wpc.lossy_blocks |= sub.lossy_blocks;
+                count++;
+
+                if ((wphdr.flags & Defines.FINAL_BLOCK) != 0)
+                {
+                    wpc.num_streams = count;
+
+                    if (wpc.stream != wpc.streams[0].stream)
+                        wpc.own_stream = wpc.stream;
+
+                    wpc.stream = wpc.streams[0].stream;
+
+                    if (wpc.reduced_channels != 0 && wpc.reduced_channels != segment_channels(wpc))
+                    {
+                        wpc.num_streams = 0;
+                        wpc.error = true;
+                        wpc.error_message = "multichannel layout changed!";
+                        return Defines.FALSE;
+                    }
+
+                    return Defines.TRUE;
+                }
+            }
+            else
+            {
+                count = 0;
+            }
+
+            wphdr = read_next_header(wpc, wpc.segment_header);
+        }
+
+        return Defines.FALSE;
+    }
+
+    // Return the stream context for the specified block of a segment,
+    // creating it the first time (or taking it from the spare_streams of an
+    // earlier file). Stream contexts share the configuration (and any
+    // correction file) of the file's context.
+
+    static WavpackContext stream_context(WavpackContext wpc, int index)
+    {
+        if (wpc.streams == null && wpc.spare_streams != null)
+        {
+            wpc.streams = wpc.spare_streams;
+            wpc.spare_streams = null;
+
+            for (int s = 0; s < wpc.streams.length; s++)
+            {
+                if (wpc.streams[s] != null)
+                    wpc.streams[s].wvc = wpc.wvc;
             }
+        }
 
-            wpc.config.channel_mask = 0x5 - wpc.config.num_channels;
+        if (wpc.streams == null || index >= wpc.streams.length)
+        {
+            WavpackContext streams [] = new WavpackContext[index + 4];
+
+            if (wpc.streams != null)
+                System.arraycopy(wpc.streams, 0, streams, 0, wpc.streams.length);
+
+            wpc.streams = streams;
         }
 
-        if ((wps.wphdr.flags & Defines.FINAL_BLOCK) == 0)
+        if (wpc.streams[index] == null)
         {
-            if ((wps.wphdr.flags & Defines.MONO_FLAG) != 0)
-            {
-                wpc.reduced_channels = 1;
-            }
-            else
-            {
-                wpc.reduced_channels = 2;
-            }
+            wpc.streams[index] = new WavpackContext();
+            wpc.streams[index].config = wpc.config;
+            wpc.streams[index].wvc = wpc.wvc;
         }
 
-        return wpc;
+        return wpc.streams[index];
     }
 
-    // This function obtains general information about an open file and returns
-    // a mask with the following bit values:
+    // Make the whole of the block whose header has just been read available
+    // to a context (the file's own, or a stream context of a multichannel
+    // file) as its block, which is where unpack_init() and the bitstreams read
+    // it from. From a mapped buffer the block is simply a view of the buffer;
+    // otherwise the block is read into the context's own array with a single
+    // read, so a block costs one read of the input however much metadata it
+    // has. The block is left positioned at its header. Returns FALSE if the
+    // block is cut short (or too short to be a block at all).
 
-    // MODE_LOSSLESS:  file is lossless (pure lossless only)
-    // MODE_HYBRID:  file is hybrid mode (lossy part only)
-    // MODE_FLOAT:  audio data is 32-bit ieee floating point (but will provided
-    //               in 24-bit integers for convenience)
-    // MODE_HIGH:  file was created in "high" mode (information only)
-    // MODE_FAST:  file was created in "fast" mode (information only)
+    static int frame_block(WavpackContext wpc, WavpackHeader wphdr, WavpackContext sub)
+    {
+        int block_size = (int) wphdr.ckSize + 8;
 
-    
-    static int WavpackGetMode (WavpackContext wpc)
+        if (block_size < 32)
+            return Defines.FALSE;
+
+        if (wpc.mapped != null)
+        {
+            int start = wpc.mapped.position() - 32;
+
+            if (block_size > wpc.mapped.limit() - start)
+                return Defines.FALSE;
+
+            if (sub.block == null || wraps_block_data(sub))
+                sub.block = wpc.mapped.duplicate();
+
+            sub.block.limit(start + block_size);
+            sub.block.position(start);
+            wpc.mapped.position(start + block_size);
+
+            return Defines.TRUE;
+        }
+
+        if (sub.block_data == null || sub.block_data.length < block_size)
+            sub.block_data = new byte[Math.max(block_size, Defines.BITSTREAM_BUFFER_SIZE)];
+
+        if (!wraps_block_data(sub))
+            sub.block = java.nio.ByteBuffer.wrap(sub.block_data);
+
+        if (read_block(wpc.infile, wphdr, sub.block_data, 0) == Defines.FALSE)
+            return Defines.FALSE;
+
+        sub.block.limit(block_size);
+        sub.block.position(0);
+
+        return Defines.TRUE;
+    }
+
+    // Read the whole of the block whose header has just been read from
+    // infile into data at offset, header included, with a single read of
+    // the rest of the block. There must be room for its ckSize + 8 bytes.
+    // Returns FALSE if the block is cut short.
+
+    static int read_block(java.io.DataInputStream infile, WavpackHeader wphdr, byte [] data, int offset)
     {
-        int mode = 0;
-    
-        if (null != wpc) 
+        System.arraycopy(wphdr.buffer, 0, data, offset, 32);
+
+        try
         {
-            if ( (wpc.config.flags & Defines.CONFIG_HYBRID_FLAG) != 0)
-                mode |= Defines.MODE_HYBRID;
-            else if ((wpc.config.flags & Defines.CONFIG_LOSSY_MODE)==0)
-                mode |= Defines.MODE_LOSSLESS;
-    
-            if (wpc.lossy_blocks != 0)
-                mode &= ~Defines.MODE_LOSSLESS;
-    
-            if ( (wpc.config.flags & Defines.CONFIG_FLOAT_DATA) != 0)
-                mode |= Defines.MODE_FLOAT;
-    
-            if ( (wpc.config.flags & Defines.CONFIG_HIGH_FLAG) != 0)
-                mode |= Defines.MODE_HIGH;
-    
-            if ( (wpc.config.flags & Defines.CONFIG_FAST_FLAG) != 0)
-                mode |= Defines.MODE_FAST;
+            infile.readFully(data, offset + 32, (int) wphdr.ckSize + 8 - 32);
         }
-    
-        return mode;
+        catch (java.io.IOException e)
+        {
+            return Defines.FALSE;
+        }
+
+        return Defines.TRUE;
     }
-    
 
-    // Unpack the specified number of samples from the current file position.
-    // Note that "samples" here refers to "complete" samples, which would be
-    // 2 longs for stereo files. The audio data is returned right-justified in
-    // 32-bit longs in the endian mode native to the executing processor. So,
-    // if the original data was 16-bit, then the values returned would be
-    // +/-32k. Floating point data will be returned as 24-bit integers (and may
-    // also be clipped). The actual number of samples unpacked is returned,
-    // which should be equal to the number requested unless the end of file is
-    // encountered or an error occurs.
+    // Returns true if the context's block is its own block_data rather than a
+    // view of a mapped buffer, so that it can be kept from one file to the next.
 
-    public static long WavpackUnpackSamples(WavpackContext wpc, int [] buffer, long samples)
+    static boolean wraps_block_data(WavpackContext sub)
     {
-        WavpackStream wps = wpc.stream;
-        long samples_unpacked = 0, samples_to_unpack;
-        int num_channels = wpc.config.num_channels;
-        int bcounter = 0;
+        return sub.block != null && sub.block.hasArray() && sub.block.array() == sub.block_data;
+    }
 
-        int buf_idx = 0;
-        int bytes_returned = 0;
+    // Frame the block whose header is in the context's stream, as above, and
+    // unpack_init() it. This is for files of mono and stereo blocks, which the
+    // context unpacks itself.
 
-        while (samples > 0)
+    static int init_block(WavpackContext wpc)
+    {
+        if (frame_block(wpc, wpc.stream.wphdr, wpc) == Defines.FALSE)
+            return Defines.FALSE;
+
+        wpc.block.position(wpc.block.position() + 32);
+
+        return UnpackUtils.unpack_init(wpc);
+    }
+
+    // Return the number of channels in the current segment, counting the
+    // two channels that a false stereo block unpacks to.
+
+    static int segment_channels(WavpackContext wpc)
+    {
+        int channels = 0;
+
+        for (int s = 0; s < wpc.num_streams; s++)
         {
-            if (wps.wphdr.block_samples == 0 || (wps.wphdr.flags & Defines.INITIAL_BLOCK) == 0
-                || wps.sample_index >= wps.wphdr.block_index
-                + wps.wphdr.block_samples)
-            {
+            if ((wpc.streams[s].stream.wphdr.flags & Defines.MONO_FLAG) != 0)
+                channels++;
+            else
+                channels += 2;
+        }
 
-                wps.wphdr = read_next_header(wpc.infile, wps.wphdr);
+        return channels;
+    }
 
-                if (wps.wphdr.status == 1)
-                    break;
+    // Seek to the specified sample index, so that the next call to
+    // WavpackUnpackSamples() starts with that sample. The context must have
+    // been opened from a SeekableByteChannel. The block holding the sample is
+    // looked up in the block index if the context has one and is otherwise
+    // located from the block headers alone, it is initialized as usual and
+    // only the samples ahead of the target inside that block are decoded and
+    // discarded. The return value is false if the sample could not be
+    // reached, in which case the context should not be used again except
+    // for another seek.
+
+    public static boolean WavpackSeekSample(WavpackContext wpc, long sample)
+    {
+        WavpackStream wps;
+        long block_offset;
 
-                if (wps.wphdr.block_samples == 0 || wps.sample_index == wps.wphdr.block_index)
-                {
-                    if ((UnpackUtils.unpack_init(wpc)) == Defines.FALSE)
-                        break;
-                }
-            }
+        if (null == wpc || null == wpc.channel || sample < 0)
+            return false;
 
-            if (wps.wphdr.block_samples == 0 || (wps.wphdr.flags & Defines.INITIAL_BLOCK) == 0
-                || wps.sample_index >= wps.wphdr.block_index
-                + wps.wphdr.block_samples)
-                continue;
+        if (wpc.total_samples != -1 && sample >= wpc.total_samples)
+            return false;
 
-            if (wps.sample_index < wps.wphdr.block_index)
-            {
-                samples_to_unpack = wps.wphdr.block_index - wps.sample_index;
+        wps = wpc.stream;
 
-                if (samples_to_unpack > samples)
-                    samples_to_unpack = samples;
+        if (wpc.block_index != null)
+            block_offset = wpc.block_index.findBlock(sample);
+        else
+            block_offset = find_block(wpc.channel, sample, new WavpackHeader());
 
-                wps.sample_index += samples_to_unpack;
-                samples_unpacked += samples_to_unpack;
-                samples -= samples_to_unpack;
+        if (block_offset == -1)
+            return false;
 
-                if (wpc.reduced_channels > 0)
-                    samples_to_unpack *= wpc.reduced_channels;
-                else
-                    samples_to_unpack *= num_channels;
+        try
+        {
+            wpc.channel.position(block_offset);
+        }
+        catch (java.io.IOException e)
+        {
+            return false;
+        }
 
-                bcounter = buf_idx;
-               
-                while (samples_to_unpack > 0)
-                {
-                    buffer[bcounter] = 0;
-                    bcounter++;
-                    samples_to_unpack--;
-                }
-                buf_idx = bcounter;
+        wpc.infile = open_channel_stream(wpc.channel);
 
-                continue;
-            }
+        if (wpc.streams != null)
+        {
+            if (read_segment(wpc, read_next_header(wpc.infile, wpc.segment_header)) == Defines.FALSE)
+                return false;
 
-            samples_to_unpack = wps.wphdr.block_index + wps.wphdr.block_samples - wps.sample_index;
+            wps = wpc.stream;
+        }
+        else
+        {
+            wps.wphdr = read_next_header(wpc.infile, wps.wphdr);
 
-            if (samples_to_unpack > samples)
-                samples_to_unpack = samples;
+            if (wps.wphdr.status == 1 || init_block(wpc) == Defines.FALSE)
+                return false;
+        }
 
-            UnpackUtils.unpack_samples(wpc, buffer, samples_to_unpack, buf_idx);
+        long samples_to_skip = sample - wps.sample_index;
 
-            if (wpc.reduced_channels > 0)
-                bytes_returned = (int) (samples_to_unpack * wpc.reduced_channels);
-            else
-                bytes_returned = (int) (samples_to_unpack * num_channels);
+        return skip_samples(wpc, samples_to_skip) == samples_to_skip;
+    }
 
-            buf_idx += bytes_returned;
+    // Decode and discard the specified number of samples, a sample_buffer at
+    // a time. Float data is unpacked as floats, so that the extra bits that
+    // rebuild the exact floats are read along with the samples and are in
+    // step for a WavpackUnpackFloatSamples() that follows (unpacking ints
+    // does not need them). The number of samples discarded is returned, which
+    // is less than asked for only at the end of the file or on an error.
 
-            samples_unpacked += samples_to_unpack;
-            samples -= samples_to_unpack;
+    static long skip_samples(WavpackContext wpc, long samples)
+    {
+        int num_channels = WavpackGetReducedChannels(wpc);
+        int [] temp_buffer = sample_buffer(wpc);
+        boolean floats = (wpc.config.flags & Defines.CONFIG_FLOAT_DATA) != 0;
+        long samples_to_skip = samples;
 
-            if (wps.sample_index == wps.wphdr.block_index + wps.wphdr.block_samples)
-            {
-                if (UnpackUtils.check_crc_error(wpc) > 0)
-                    wpc.crc_errors++;
-            }
+        if (floats && (wpc.float_buffer == null || wpc.float_buffer.length < temp_buffer.length))
+            wpc.float_buffer = new float[temp_buffer.length];
 
-            if (wps.sample_index == wpc.total_samples)
+        while (samples_to_skip > 0)
+        {
+            long samples_to_unpack = temp_buffer.length / num_channels;
+            long samples_unpacked;
+
+            if (samples_to_unpack > samples_to_skip)
+                samples_to_unpack = samples_to_skip;
+
+            if (floats)
+                samples_unpacked = unpack_floats(wpc, wpc.float_buffer, 0, samples_to_unpack, false);
+            else
+                samples_unpacked = WavpackUnpackSamples(wpc, temp_buffer, samples_to_unpack);
+
+            if (samples_unpacked == 0)
                 break;
+
+            samples_to_skip -= samples_unpacked;
         }
 
-        return (samples_unpacked);
+        return samples - samples_to_skip;
     }
 
     // Get total number of samples contained in the WavPack file, or -1 if unknown
@@ -291,6 +1268,21 @@ public class WavPackUtils
     }
 
 
+    // Get the number of samples in the current block, which is the one that
+    // WavpackUnpackBlock() will decode next unless it has been completely
+    // unpacked already. All the blocks of a file normally hold the same number
+    // of samples, apart from a shorter final block, so a buffer of this many
+    // complete samples can be allocated once and used for the whole file.
+
+    public static long WavpackGetBlockSamples(WavpackContext wpc)
+    {
+        if (null != wpc)
+            return wpc.stream.wphdr.block_samples;
+
+        return (long) 0;
+    }
+
+
     // Get the current sample index position, or -1 if unknown
  
     public static long WavpackGetSampleIndex (WavpackContext wpc)
@@ -350,9 +1342,9 @@ public class WavPackUtils
     }
 
 
-    // Returns the number of channels of the specified WavPack file. Note that
-    // this is the actual number of channels contained in the file, but this
-    // version can only decode the first two.
+    // Returns the number of channels of the specified WavPack file. This is
+    // the number of channels the file says it contains, which should be the
+    // same as the number decoded (see WavpackGetReducedChannels()).
 
     public static int WavpackGetNumChannels(WavpackContext wpc)
     {
@@ -367,6 +1359,32 @@ public class WavPackUtils
     }
 
 
+    // Returns the channel mask of the specified WavPack file, with the same
+    // meaning as dwChannelMask in Microsoft's WAVEFORMATEXTENSIBLE. Unpacked
+    // channels are in the order of the bits set in the mask, lowest bit first,
+    // followed by any channels that have no speaker assigned.
+
+    public static long WavpackGetChannelMask(WavpackContext wpc)
+    {
+        if (null != wpc)
+            return wpc.config.channel_mask;
+
+        return (long) 0;
+    }
+
+    // Decode the blocks of each multi-channel segment at the same time, one
+    // task per block in the specified pool, instead of one after another on
+    // the calling thread. The samples returned are the same either way. Pass
+    // null to go back to the calling thread. This makes no difference to mono
+    // and stereo files, which only have one block per segment.
+
+    public static void WavpackSetStreamPool(WavpackContext wpc, java.util.concurrent.ForkJoinPool pool)
+    {
+        if (null != wpc)
+            wpc.stream_pool = pool;
+    }
+
+
     // Returns the actual number of valid bits per sample contained in the
     // original file, which may or may not be a multiple of 8. Floating data
     // always has 32 bits, integers may be from 1 to 32 bits each. When this
@@ -407,9 +1425,10 @@ public class WavPackUtils
 
 
     // This function will return the actual number of channels decoded from the
-    // file (which may or may not be less than the actual number of channels, but
-    // will always be 1 or 2). Normally, this will be the front left and right
-    // channels of a multi-channel file.
+    // file, which is the number of channels in each complete sample unpacked.
+    // For a multi-channel file this counts every channel of every block in a
+    // segment, so it only differs from WavpackGetNumChannels() for a damaged
+    // file.
 
     public static int WavpackGetReducedChannels(WavpackContext wpc)
     {
@@ -427,6 +1446,55 @@ public class WavPackUtils
         }
     }
 
+    // Read the next header from wherever the context gets its data.
+
+    static WavpackHeader read_next_header(WavpackContext wpc, WavpackHeader wphdr)
+    {
+        if (wpc.mapped != null)
+            return read_next_header(wpc.mapped, wphdr);
+
+        return read_next_header(wpc.infile, wphdr);
+    }
+
+    // Same as below, but the header is found in the buffer from its current
+    // position, which is left just past the header.
+
+    static WavpackHeader read_next_header(java.nio.ByteBuffer buffer, WavpackHeader wphdr)
+    {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        long bytes_skipped = 0;
+
+        while (limit - position >= 32)
+        {
+            if (buffer.get(position) == 'w')
+            {
+                for (int i = 0; i < 32; i++)
+                    wphdr.buffer[i] = buffer.get(position + i);
+
+                if (parse_header(wphdr))
+                {
+                    buffer.position(position + 32);
+                    wphdr.status = 0;
+                    wphdr.bytes_skipped = bytes_skipped;
+
+                    return wphdr;
+                }
+            }
+
+            position++;
+            bytes_skipped++;
+
+            if (bytes_skipped > 1048576L)
+                break;
+        }
+
+        buffer.position(position);
+        wphdr.status = 1;
+
+        return wphdr;
+    }
+
     // Read from current file position until a valid 32-byte WavPack 4.0 header is
     // found and read into the specified pointer. If no WavPack header is found within 1 meg,
     // then an error is returned. No additional bytes are read past the header. 
@@ -468,53 +1536,10 @@ public class WavPackUtils
 
             bleft = 32;
 
-            if (wphdr.buffer[0] == 'w' && wphdr.buffer[1] == 'v' && wphdr.buffer[2] == 'p' && wphdr.buffer[3] == 'k'
-                && (wphdr.buffer[4] & 1) == 0 && wphdr.buffer[6] < 16 && wphdr.buffer[7] == 0 && wphdr.buffer[9] == 4
-                && wphdr.buffer[8] >= (Defines.MIN_STREAM_VERS & 0xff) && wphdr.buffer[8] <= (Defines.MAX_STREAM_VERS & 0xff))
+            if (parse_header(wphdr))
             {
-
-                wphdr.ckID[0] = 'w';
-                wphdr.ckID[1] = 'v';
-                wphdr.ckID[2] = 'p';
-                wphdr.ckID[3] = 'k';
-
-                wphdr.ckSize = (long) ((wphdr.buffer[7] & 0xFF) << 24);
-                wphdr.ckSize += (long) ((wphdr.buffer[6] & 0xFF) << 16);
-                wphdr.ckSize += (long) ((wphdr.buffer[5] & 0xFF) << 8);
-                wphdr.ckSize += (long) (wphdr.buffer[4] & 0xFF);
-
-                wphdr.version = (short) (wphdr.buffer[9] << 8);
-                wphdr.version += (short) (wphdr.buffer[8]);
-
-                wphdr.track_no = wphdr.buffer[10];
-                wphdr.index_no = wphdr.buffer[11];
-
-                wphdr.total_samples = (long) ((wphdr.buffer[15] & 0xFF) << 24);
-                wphdr.total_samples += (long) ((wphdr.buffer[14] & 0xFF) << 16);
-                wphdr.total_samples += (long) ((wphdr.buffer[13] & 0xFF) << 8);
-                wphdr.total_samples += (long) (wphdr.buffer[12] & 0xFF);
-
-                wphdr.block_index = (long) ((wphdr.buffer[19] & 0xFF) << 24);
-                wphdr.block_index += (long) ((wphdr.buffer[18] & 0xFF) << 16);
-                wphdr.block_index += (long) ((wphdr.buffer[17] & 0xFF) << 8);
-                wphdr.block_index += (long) (wphdr.buffer[16]) & 0XFF;
-
-                wphdr.block_samples = (long) ((wphdr.buffer[23] & 0xFF) << 24);
-                wphdr.block_samples += (long) ((wphdr.buffer[22] & 0xFF) << 16);
-                wphdr.block_samples += (long) ((wphdr.buffer[21] & 0xFF) << 8);
-                wphdr.block_samples += (long) (wphdr.buffer[20] & 0XFF);
-
-                wphdr.flags = (long) ((wphdr.buffer[27] & 0xFF) << 24);
-                wphdr.flags += (long) ((wphdr.buffer[26] & 0xFF) << 16);
-                wphdr.flags += (long) ((wphdr.buffer[25] & 0xFF) << 8);
-                wphdr.flags += (long) (wphdr.buffer[24] & 0xFF);
-
-                wphdr.crc = (long) ((wphdr.buffer[31] & 0xFF) << 24);
-                wphdr.crc += (long) ((wphdr.buffer[30] & 0xFF) << 16);
-                wphdr.crc += (long) ((wphdr.buffer[29] & 0xFF) << 8);
-                wphdr.crc += (long) (wphdr.buffer[28] & 0xFF);
-
                 wphdr.status = 0;
+                wphdr.bytes_skipped = bytes_skipped;
 
                 return wphdr;
             }
@@ -539,4 +1564,150 @@ public class WavPackUtils
             }
         }
     }
-}
\ No newline at end of file
+
+    // Check that the 32 bytes in wphdr.buffer are a valid WavPack 4.0 header
+    // and if so fill in the header fields from them. Returns false, leaving
+    // the fields alone, if the bytes are not a header. As in the reference
+    // decoder, a block too short to hold the rest of its own header is not
+    // taken for one.
+
+    static boolean parse_header(WavpackHeader wphdr)
+    {
+        if (!(wphdr.buffer[0] == 'w' && wphdr.buffer[1] == 'v' && wphdr.buffer[2] == 'p' && wphdr.buffer[3] == 'k'
+            && (wphdr.buffer[4] & 1) == 0 && wphdr.buffer[6] < 16 && wphdr.buffer[7] == 0 && wphdr.buffer[9] == 4
+            && (wphdr.buffer[6] != 0 || wphdr.buffer[5] != 0 || (wphdr.buffer[4] & 0xff) >= 24)
+            && wphdr.buffer[8] >= (Defines.MIN_STREAM_VERS & 0xff) && wphdr.buffer[8] <= (Defines.MAX_STREAM_VERS & 0xff)))
+            return false;
+
+        wphdr.ckID[0] = 'w';
+        wphdr.ckID[1] = 'v';
+        wphdr.ckID[2] = 'p';
+        wphdr.ckID[3] = 'k';
+
+        wphdr.ckSize = (long) ((wphdr.buffer[7] & 0xFF) << 24);
+        wphdr.ckSize += (long) ((wphdr.buffer[6] & 0xFF) << 16);
+        wphdr.ckSize += (long) ((wphdr.buffer[5] & 0xFF) << 8);
+        wphdr.ckSize += (long) (wphdr.buffer[4] & 0xFF);
+
+        wphdr.version = (short) (wphdr.buffer[9] << 8);
+        wphdr.version += (short) (wphdr.buffer[8]);
+
+        wphdr.track_no = wphdr.buffer[10];
+        wphdr.index_no = wphdr.buffer[11];
+
+        wphdr.total_samples = (long) ((wphdr.buffer[15] & 0xFF) << 24);
+        wphdr.total_samples += (long) ((wphdr.buffer[14] & 0xFF) << 16);
+        wphdr.total_samples += (long) ((wphdr.buffer[13] & 0xFF) << 8);
+        wphdr.total_samples += (long) (wphdr.buffer[12] & 0xFF);
+
+        wphdr.block_index = (long) ((wphdr.buffer[19] & 0xFF) << 24);
+        wphdr.block_index += (long) ((wphdr.buffer[18] & 0xFF) << 16);
+        wphdr.block_index += (long) ((wphdr.buffer[17] & 0xFF) << 8);
+        wphdr.block_index += (long) (wphdr.buffer[16]) & 0XFF;
+
+        wphdr.block_samples = (long) ((wphdr.buffer[23] & 0xFF) << 24);
+        wphdr.block_samples += (long) ((wphdr.buffer[22] & 0xFF) << 16);
+        wphdr.block_samples += (long) ((wphdr.buffer[21] & 0xFF) << 8);
+        wphdr.block_samples += (long) (wphdr.buffer[20] & 0XFF);
+
+        wphdr.flags = (long) ((wphdr.buffer[27] & 0xFF) << 24);
+        wphdr.flags += (long) ((wphdr.buffer[26] & 0xFF) << 16);
+        wphdr.flags += (long) ((wphdr.buffer[25] & 0xFF) << 8);
+        wphdr.flags += (long) (wphdr.buffer[24] & 0xFF);
+
+        wphdr.crc = (long) ((wphdr.buffer[31] & 0xFF) << 24);
+        wphdr.crc += (long) ((wphdr.buffer[30] & 0xFF) << 16);
+        wphdr.crc += (long) ((wphdr.buffer[29] & 0xFF) << 8);
+        wphdr.crc += (long) (wphdr.buffer[28] & 0xFF);
+
+        return true;
+    }
+
+    // Wrap a channel in a buffered stream reading from its current position.
+
+    static java.io.DataInputStream open_channel_stream(java.nio.channels.SeekableByteChannel channel)
+    {
+        return new java.io.DataInputStream(new java.io.BufferedInputStream(java.nio.channels.Channels.newInputStream(channel)));
+    }
+
+    // Search a seekable channel for the next valid WavPack header at or after
+    // the specified byte position. The header is read into wphdr and its byte
+    // offset is returned, or -1 if no header is found.
+
+    static long find_header(java.nio.channels.SeekableByteChannel channel, long position, WavpackHeader wphdr)
+    {
+        try
+        {
+            channel.position(position);
+        }
+        catch (java.io.IOException e)
+        {
+            return -1;
+        }
+
+        wphdr = read_next_header(open_channel_stream(channel), wphdr);
+
+        if (wphdr.status == 1)
+            return -1;
+
+        return position + wphdr.bytes_skipped;
+    }
+
+    // Find the byte offset of the initial block of the multichannel segment
+    // that contains the specified sample, or -1 if there is no such block.
+    // The channel is bisected on byte position, resyncing to the next header
+    // at each probe, until the remaining range is small enough to walk block
+    // by block using the header sizes.
+
+    static long find_block(java.nio.channels.SeekableByteChannel channel, long sample, WavpackHeader wphdr)
+    {
+        long lo, hi, offset;
+
+        try
+        {
+            hi = channel.size();
+        }
+        catch (java.io.IOException e)
+        {
+            return -1;
+        }
+
+        lo = find_header(channel, 0, wphdr);
+
+        if (lo == -1 || wphdr.block_index > sample)
+            return -1;
+
+        // lo always holds a header that is at or before the wanted block
+
+        while (hi - lo > SEEK_WALK_BYTES)
+        {
+            long mid = lo + (hi - lo) / 2;
+
+            offset = find_header(channel, mid, wphdr);
+
+            if (offset == -1 || offset >= hi)
+                hi = mid;
+            else if (wphdr.block_index > sample || ((wphdr.flags & Defines.INITIAL_BLOCK) == 0
+                && wphdr.block_index + wphdr.block_samples > sample))
+                hi = offset;
+            else
+                lo = offset;
+        }
+
+        offset = lo;
+
+        while ((offset = find_header(channel, offset, wphdr)) != -1)
+        {
+            if (wphdr.block_index > sample)
+                return -1;
+
+            if ((wphdr.flags & Defines.INITIAL_BLOCK) != 0 && wphdr.block_samples > 0
+                && sample < wphdr.block_index + wphdr.block_samples)
+                return offset;
+
+            offset += wphdr.ckSize + 8;
+        }
+
+        return -1;
+    }
+}
@@ -14,15 +14,12 @@ public class WavWriter
 {
 	static void write_uint32(java.io.BufferedOutputStream f, int v)
 	{
-		byte[] outputBytes = new byte[4];
-		
-		outputBytes[3] = (byte) (v >>> 24);
-		outputBytes[2] = (byte) (v >>> 16);
-		outputBytes[1] = (byte) (v >>> 8);
-		outputBytes[0] = (byte) (v);
 		try
 		{
-			f.write(outputBytes, 0, 4 );
+			f.write(v);
+			f.write(v >>> 8);
+			f.write(v >>> 16);
+			f.write(v >>> 24);
 		}
 		catch(java.io.IOException ioe)
 		{
@@ -31,13 +28,10 @@ public class WavWriter
 
 	static void write_uint16(java.io.BufferedOutputStream f, int v)
 	{
-		byte[] outputBytes = new byte[2];
-		
-		outputBytes[1] = (byte) (v >>> 8);
-		outputBytes[0] = (byte) (v);
 		try
 		{
-			f.write(outputBytes, 0, 2 );
+			f.write(v);
+			f.write(v >>> 8);
 		}
 		catch(java.io.IOException ioe)
 		{
@@ -0,0 +1,235 @@
+/*
+** WavpackAudioFileReader.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A Java Sound service provider that lets AudioSystem.getAudioInputStream()
+// and AudioSystem.getAudioFileFormat() open WavPack files. It is registered
+// in META-INF/services/javax.sound.sampled.spi.AudioFileReader, so having
+// the decoder (with that file) on the class path is all that is needed.
+//
+// The streams returned give the decoded audio as PCM, or PCM_FLOAT for
+// floating point files (see WavpackAudioInputStream), so no format conversion is needed to play or
+// process them; AudioSystem's own converters can change the sample size or
+// byte order from there. Correction files are not used by this reader.
+
+public class WavpackAudioFileReader extends javax.sound.sampled.spi.AudioFileReader
+{
+    public static final javax.sound.sampled.AudioFileFormat.Type WAVPACK =
+        new javax.sound.sampled.AudioFileFormat.Type("WavPack", "wv");
+
+    static final int MARK_LIMIT = 2 * 1048576;	// enough to reach the first audio block
+
+
+    public WavpackAudioFileReader()
+    {
+    }
+
+    // Return the format of the WavPack file in the stream, which must support
+    // mark() and reset() and is left where it was.
+
+    public javax.sound.sampled.AudioFileFormat getAudioFileFormat(java.io.InputStream stream)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        return file_format(peek_context(stream));
+    }
+
+    public javax.sound.sampled.AudioFileFormat getAudioFileFormat(java.net.URL url)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        java.io.InputStream stream = new java.io.BufferedInputStream(url.openStream());
+
+        try
+        {
+            return getAudioFileFormat(stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    public javax.sound.sampled.AudioFileFormat getAudioFileFormat(java.io.File file)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        java.nio.channels.FileChannel channel = new java.io.RandomAccessFile(file, "r").getChannel();
+
+        try
+        {
+            return file_format(open_channel(channel));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    // Return a stream of the audio of the WavPack file in the stream, which
+    // must support mark() and reset(). Closing the returned stream closes it.
+
+    public javax.sound.sampled.AudioInputStream getAudioInputStream(java.io.InputStream stream)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        peek_context(stream);
+
+        WavpackContext wpc = WavPackUtils.WavpackOpenFileInput(new java.io.DataInputStream(stream));
+
+        if (wpc.error)
+            throw new javax.sound.sampled.UnsupportedAudioFileException(wpc.error_message);
+
+        return new WavpackAudioInputStream(stream, wpc);
+    }
+
+    public javax.sound.sampled.AudioInputStream getAudioInputStream(java.net.URL url)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        java.io.InputStream stream = new java.io.BufferedInputStream(url.openStream());
+        boolean opened = false;
+
+        try
+        {
+            javax.sound.sampled.AudioInputStream audio = getAudioInputStream(stream);
+
+            opened = true;
+            return audio;
+        }
+        finally
+        {
+            if (!opened)
+                stream.close();
+        }
+    }
+
+    // As above, but the file is opened for seeking, so that skip() on the
+    // returned stream goes straight to the block it needs.
+
+    public javax.sound.sampled.AudioInputStream getAudioInputStream(java.io.File file)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        java.nio.channels.FileChannel channel = new java.io.RandomAccessFile(file, "r").getChannel();
+        boolean opened = false;
+
+        try
+        {
+            WavpackContext wpc = open_channel(channel);
+            javax.sound.sampled.AudioInputStream audio =
+                new WavpackAudioInputStream(java.nio.channels.Channels.newInputStream(channel), wpc);
+
+            opened = true;
+            return audio;
+        }
+        finally
+        {
+            if (!opened)
+                channel.close();
+        }
+    }
+
+
+    // Open the WavPack file in the stream far enough to know its format,
+    // without moving the stream. This is done with a WavpackPushDecoder, fed
+    // up to MARK_LIMIT bytes. Anything that does not start with a WavPack
+    // block header is turned away at once, since AudioSystem offers every
+    // file to every reader.
+
+    static WavpackContext peek_context(java.io.InputStream stream)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        if (!stream.markSupported())
+            throw new java.io.IOException("mark/reset not supported");
+
+        WavpackPushDecoder decoder = new WavpackPushDecoder();
+        byte data [] = new byte[4096];
+        int count, total = 0;
+
+        stream.mark(MARK_LIMIT);
+
+        try
+        {
+            while (total < 32 && (count = stream.read(data, total, 32 - total)) > 0)
+                total += count;
+
+            if (is_header(data, total))
+            {
+                decoder.feed(java.nio.ByteBuffer.wrap(data, 0, total));
+
+                while (!decoder.blockReady() && !decoder.isFinished())
+                {
+                    count = total < MARK_LIMIT ? stream.read(data, 0, Math.min(data.length, MARK_LIMIT - total)) : -1;
+
+                    if (count <= 0)
+                        decoder.finish();
+                    else
+                    {
+                        decoder.feed(java.nio.ByteBuffer.wrap(data, 0, count));
+                        total += count;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            stream.reset();
+        }
+
+        if (!decoder.blockReady())
+            throw new javax.sound.sampled.UnsupportedAudioFileException("not a WavPack file");
+
+        return decoder.getContext();
+    }
+
+    // Open the WavPack file in a channel for seeking, after checking that it
+    // starts with a WavPack block header.
+
+    static WavpackContext open_channel(java.nio.channels.FileChannel channel)
+        throws javax.sound.sampled.UnsupportedAudioFileException, java.io.IOException
+    {
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(32);
+
+        while (header.hasRemaining() && channel.read(header) > 0)
+            ;
+
+        channel.position(0);
+
+        if (!is_header(header.array(), header.position()))
+            throw new javax.sound.sampled.UnsupportedAudioFileException("not a WavPack file");
+
+        WavpackContext wpc = WavPackUtils.WavpackOpenFileInput(channel);
+
+        if (wpc.error)
+            throw new javax.sound.sampled.UnsupportedAudioFileException(wpc.error_message);
+
+        return wpc;
+    }
+
+    // Returns true if the first count bytes of data start with a valid block
+    // header.
+
+    static boolean is_header(byte [] data, int count)
+    {
+        WavpackHeader wphdr = new WavpackHeader();
+
+        if (count < 32)
+            return false;
+
+        System.arraycopy(data, 0, wphdr.buffer, 0, 32);
+
+        return WavPackUtils.parse_header(wphdr);
+    }
+
+    static javax.sound.sampled.AudioFileFormat file_format(WavpackContext wpc)
+    {
+        long frames = WavpackAudioInputStream.frame_length(wpc);
+
+        return new javax.sound.sampled.AudioFileFormat(WAVPACK, WavpackAudioInputStream.audio_format(wpc),
+            frames > Integer.MAX_VALUE ? javax.sound.sampled.AudioSystem.NOT_SPECIFIED : (int) frames);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+** WavpackAudioInputStream.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// The decoded audio of a WavPack file as a Java Sound AudioInputStream, as
+// returned by WavpackAudioFileReader. The audio is little-endian PCM, packed
+// as by WavPackUtils.WavpackUnpackPcmSamples(), which read() decodes straight
+// into the caller's array. Floating point files (MODE_FLOAT) are instead
+// PCM_FLOAT, the 32-bit floats of WavPackUtils.WavpackUnpackFloatSamples()
+// in little-endian order, so they are not cut down to 24 bits. skip() seeks to the block holding the new position
+// when the file was opened from a File (and so a seekable channel), and
+// otherwise decodes and drops the samples in between. Like the context it
+// reads, the stream must only be used by one thread at a time.
+
+class WavpackAudioInputStream extends javax.sound.sampled.AudioInputStream
+{
+    WavpackContext wpc;
+    boolean floats;	// a float file, read as floats
+    boolean ended;	// skipped to the end
+
+
+    // Make a stream of the samples of an opened context, which reads its
+    // data from source (the stream closed by close()).
+
+    WavpackAudioInputStream(java.io.InputStream source, WavpackContext wpc)
+    {
+        super(source, audio_format(wpc), frame_length(wpc));
+
+        this.wpc = wpc;
+        floats = is_float(wpc);
+    }
+
+    // Read as many whole frames as fit in length bytes, decoding them into
+    // the array. Returns the number of bytes read, which is 0 if there is not
+    // room for a whole frame, or -1 at the end of the audio.
+
+    public int read(byte [] buffer, int offset, int length) throws java.io.IOException
+    {
+        int frames = length / frameSize;
+
+        if (frames == 0)
+            return 0;
+
+        if (ended)
+            return -1;
+
+        java.nio.ByteBuffer data = java.nio.ByteBuffer.wrap(buffer, offset, frames * frameSize);
+        long samples;
+
+        if (floats)
+            samples = WavPackUtils.WavpackUnpackFloatSamples(wpc,
+                data.order(java.nio.ByteOrder.LITTLE_ENDIAN).asFloatBuffer(), frames);
+        else
+            samples = WavPackUtils.WavpackUnpackPcmSamples(wpc, data, frames);
+
+        if (samples == 0)
+            return -1;
+
+        framePos += samples;
+
+        return (int) samples * frameSize;
+    }
+
+    // As for any AudioInputStream, a single byte can only be read if that is
+    // a whole frame.
+
+    public int read() throws java.io.IOException
+    {
+        byte data [] = new byte[1];
+
+        if (frameSize != 1)
+            throw new java.io.IOException("cannot read a single byte if frame size > 1");
+
+        return read(data, 0, 1) == 1 ? data[0] & 0xff : -1;
+    }
+
+    // Skip as many whole frames as fit in count bytes. A skip beyond the
+    // current block seeks, if the file can be seeked; a shorter one (or any
+    // skip when it cannot) decodes the samples in between. The number of
+    // bytes skipped is returned.
+
+    public long skip(long count) throws java.io.IOException
+    {
+        WavpackStream wps = wpc.stream;
+        long frames = count / frameSize;
+        long index = WavPackUtils.WavpackGetSampleIndex(wpc);
+        long total = WavPackUtils.WavpackGetNumSamples(wpc);
+
+        if (frames <= 0 || ended)
+            return 0;
+
+        if (total != -1 && index + frames >= total)
+        {
+            frames = Math.max(total - index, 0);
+            ended = true;
+        }
+        else if (wpc.channel != null && index + frames >= wps.wphdr.block_index + wps.wphdr.block_samples)
+        {
+            if (!WavPackUtils.WavpackSeekSample(wpc, index + frames))
+                throw new java.io.IOException("cannot seek to sample " + (index + frames));
+        }
+        else
+        {
+            long skipped = WavPackUtils.skip_samples(wpc, frames);
+
+            if (skipped < frames)
+                ended = true;
+
+            frames = skipped;
+        }
+
+        framePos += frames;
+
+        return frames * frameSize;
+    }
+
+    // Returns the number of bytes left in the current block, which can be
+    // read without reading any more of the file.
+
+    public int available() throws java.io.IOException
+    {
+        WavpackStream wps = wpc.stream;
+        long samples = wps.wphdr.block_index + wps.wphdr.block_samples - wps.sample_index;
+
+        if (ended || samples <= 0)
+            return 0;
+
+        return (int) Math.min(samples * frameSize, Integer.MAX_VALUE);
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    public void mark(int readlimit)
+    {
+    }
+
+    public void reset() throws java.io.IOException
+    {
+        throw new java.io.IOException("mark/reset not supported");
+    }
+
+
+    // Return the format of the samples of a context, as read() returns them.
+
+    static javax.sound.sampled.AudioFormat audio_format(WavpackContext wpc)
+    {
+        int bps = WavPackUtils.WavpackGetBytesPerSample(wpc);
+        int num_channels = WavPackUtils.WavpackGetReducedChannels(wpc);
+
+        if (is_float(wpc))
+            return new javax.sound.sampled.AudioFormat(javax.sound.sampled.AudioFormat.Encoding.PCM_FLOAT,
+                WavPackUtils.WavpackGetSampleRate(wpc), 32, num_channels, 4 * num_channels,
+                WavPackUtils.WavpackGetSampleRate(wpc), false);
+
+        return new javax.sound.sampled.AudioFormat(bps == 1
+            ? javax.sound.sampled.AudioFormat.Encoding.PCM_UNSIGNED : javax.sound.sampled.AudioFormat.Encoding.PCM_SIGNED,
+            WavPackUtils.WavpackGetSampleRate(wpc), bps * 8, num_channels, bps * num_channels,
+            WavPackUtils.WavpackGetSampleRate(wpc), false);
+    }
+
+    // Returns true if the context holds floating point audio, which is read
+    // as floats rather than PCM.
+
+    static boolean is_float(WavpackContext wpc)
+    {
+        return (WavPackUtils.WavpackGetMode(wpc) & Defines.MODE_FLOAT) != 0;
+    }
+
+    // Return the number of frames in the file, or NOT_SPECIFIED if that is
+    // not known.
+
+    static long frame_length(WavpackContext wpc)
+    {
+        long total = WavPackUtils.WavpackGetNumSamples(wpc);
+
+        return total == -1 ? javax.sound.sampled.AudioSystem.NOT_SPECIFIED : total;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+** WavpackBlockIndex.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// An index of every block in a WavPack file: the byte offset of its header
+// plus the block_index, block_samples and flags fields of the header. It is
+// built by scanning the headers once and can be saved to a small binary
+// sidecar file, so a file that is opened often only has to be scanned once.
+// A context opened with an index seeks straight to the right block instead of
+// searching the file.
+
+public class WavpackBlockIndex
+{
+    // sidecar layout (all values big endian):
+    //   4 bytes  "wvix"
+    //   4 bytes  format version
+    //   8 bytes  length of the indexed WavPack file
+    //   8 bytes  its last-modified time (from File.lastModified())
+    //   4 bytes  number of blocks
+    //   then per block: 8 byte offset, 4 byte block_index, 4 byte block_samples, 4 byte flags
+
+    static final int SIDECAR_MAGIC = 0x77766978;    // "wvix"
+    static final int SIDECAR_VERSION = 2;
+    static final int SIDECAR_HEADER_SIZE = 28;
+    static final int SIDECAR_ENTRY_SIZE = 20;
+
+    int count;
+    long file_length;
+    long last_modified;	// of the indexed file, 0 if not known
+    long [] offset = new long[64];
+    long [] block_index = new long[64];	// was uint32_t in C
+    long [] block_samples = new long[64];	// was uint32_t in C
+    long [] flags = new long[64];	// was uint32_t in C
+
+
+    // Scan all the block headers in the channel, from the start, and return
+    // the resulting index. Only the 32 byte headers are read; the rest of each
+    // block is skipped by repositioning the channel.
+
+    public static WavpackBlockIndex build(java.nio.channels.SeekableByteChannel channel) throws java.io.IOException
+    {
+        WavpackBlockIndex index = new WavpackBlockIndex();
+        WavpackHeader wphdr = new WavpackHeader();
+
+        // unbuffered, so the channel position always follows the header just read
+        java.io.DataInputStream infile = new java.io.DataInputStream(java.nio.channels.Channels.newInputStream(channel));
+        long position = 0;
+
+        index.file_length = channel.size();
+        channel.position(0);
+
+        while (true)
+        {
+            wphdr = WavPackUtils.read_next_header(infile, wphdr);
+
+            if (wphdr.status == 1)
+                break;
+
+            position += wphdr.bytes_skipped;
+            index.add(position, wphdr);
+            position += wphdr.ckSize + 8;
+            channel.position(position);
+        }
+
+        return index;
+    }
+
+
+    // Load an index previously written by save(). Null is returned if the
+    // file is missing, is not an index (or not a whole one) or was made for a
+    // WavPack file of a different length than file_length or last modified
+    // at a different time than last_modified (as from File.lastModified()),
+    // in which case it should be rebuilt. The length alone would miss a file
+    // that was re-encoded to the same size.
+
+    public static WavpackBlockIndex load(java.io.File sidecar, long file_length, long last_modified)
+    {
+        java.io.DataInputStream in = null;
+
+        try
+        {
+            in = new java.io.DataInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(sidecar)));
+
+            if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION || in.readLong() != file_length
+                || in.readLong() != last_modified)
+                return null;
+
+            WavpackBlockIndex index = new WavpackBlockIndex();
+            int count = in.readInt();
+
+            // the count must match the length of the file, so that a damaged
+            // sidecar cannot make us allocate arrays for blocks it doesn't have
+
+            if (count < 0 || count > (sidecar.length() - SIDECAR_HEADER_SIZE) / SIDECAR_ENTRY_SIZE)
+                return null;
+
+            index.file_length = file_length;
+            index.last_modified = last_modified;
+            index.ensure_capacity(count);
+
+            for (int i = 0; i < count; i++)
+            {
+                index.offset[i] = in.readLong();
+                index.block_index[i] = in.readInt() & 0xFFFFFFFFL;
+                index.block_samples[i] = in.readInt() & 0xFFFFFFFFL;
+                index.flags[i] = in.readInt() & 0xFFFFFFFFL;
+            }
+
+            index.count = count;
+            return index;
+        }
+        catch (java.io.IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            close_quietly(in);
+        }
+    }
+
+
+    // Write the index to the given sidecar file. The index is written to a
+    // temporary file next to it which is then renamed over it, so that anyone
+    // loading the sidecar at the same time (another open of the same file,
+    // say) sees either the old sidecar or the whole new one. The sidecar
+    // records the modification time of the WavPack file only for an index
+    // from loadOrBuild(), which is the one that knows the file.
+
+    public void save(java.io.File sidecar) throws java.io.IOException
+    {
+        java.io.File temp = java.io.File.createTempFile("." + sidecar.getName() + ".", ".tmp", sidecar.getAbsoluteFile().getParentFile());
+        boolean saved = false;
+
+        try
+        {
+            write(temp);
+
+            try
+            {
+                java.nio.file.Files.move(temp.toPath(), sidecar.toPath(),
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (java.nio.file.AtomicMoveNotSupportedException e)
+            {
+                java.nio.file.Files.move(temp.toPath(), sidecar.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            saved = true;
+        }
+        finally
+        {
+            if (!saved)
+                temp.delete();
+        }
+    }
+
+    // Write the sidecar itself, in the layout above.
+
+    void write(java.io.File file) throws java.io.IOException
+    {
+        java.io.DataOutputStream out = new java.io.DataOutputStream(
+            new java.io.BufferedOutputStream(new java.io.FileOutputStream(file)));
+
+        try
+        {
+            out.writeInt(SIDECAR_MAGIC);
+            out.writeInt(SIDECAR_VERSION);
+            out.writeLong(file_length);
+            out.writeLong(last_modified);
+            out.writeInt(count);
+
+            for (int i = 0; i < count; i++)
+            {
+                out.writeLong(offset[i]);
+                out.writeInt((int) block_index[i]);
+                out.writeInt((int) block_samples[i]);
+                out.writeInt((int) flags[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    // Return the index stored in the sidecar file next to wv_file (the same
+    // name with ".wvi" appended) if it is still valid, otherwise scan the
+    // channel, which must be open on wv_file, and write a fresh sidecar. A
+    // sidecar that cannot be written is not an error, the index is still
+    // returned (and any sidecar already there is left alone). The time the
+    // file was last modified is taken before the scan, so a file that is
+    // changed during it gets a new index next time.
+
+    public static WavpackBlockIndex loadOrBuild(java.io.File wv_file, java.nio.channels.SeekableByteChannel channel)
+        throws java.io.IOException
+    {
+        java.io.File sidecar = new java.io.File(wv_file.getPath() + ".wvi");
+        long last_modified = wv_file.lastModified();
+        WavpackBlockIndex index = load(sidecar, channel.size(), last_modified);
+
+        if (index == null)
+        {
+            long position = channel.position();
+
+            index = build(channel);
+            index.last_modified = last_modified;
+            channel.position(position);
+
+            try
+            {
+                index.save(sidecar);
+            }
+            catch (java.io.IOException e)
+            {
+                // the sidecar only saves a scan next time
+            }
+        }
+
+        return index;
+    }
+
+
+    // Number of blocks in the index.
+
+    public int getBlockCount()
+    {
+        return count;
+    }
+
+
+    // Return the byte offset of the initial block of the multichannel segment
+    // that contains the specified sample, or -1 if no block contains it.
+
+    public long findBlock(long sample)
+    {
+        int lo = 0, hi = count;
+
+        // find the first block that starts after the sample
+
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+
+            if (block_index[mid] <= sample)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        // and step back to the initial block of the segment before it
+
+        for (int i = lo - 1; i >= 0; i--)
+        {
+            if ((flags[i] & Defines.INITIAL_BLOCK) != 0 && block_samples[i] > 0)
+            {
+                if (sample < block_index[i] + block_samples[i])
+                    return offset[i];
+
+                break;
+            }
+        }
+
+        return -1;
+    }
+
+
+    void add(long block_offset, WavpackHeader wphdr)
+    {
+        ensure_capacity(count + 1);
+
+        offset[count] = block_offset;
+        block_index[count] = wphdr.block_index;
+        block_samples[count] = wphdr.block_samples;
+        flags[count] = wphdr.flags;
+        count++;
+    }
+
+    void ensure_capacity(int size)
+    {
+        if (size > offset.length)
+        {
+            int new_size = Math.max(size, offset.length * 2);
+
+            offset = java.util.Arrays.copyOf(offset, new_size);
+            block_index = java.util.Arrays.copyOf(block_index, new_size);
+            block_samples = java.util.Arrays.copyOf(block_samples, new_size);
+            flags = java.util.Arrays.copyOf(flags, new_size);
+        }
+    }
+
+    static void close_quietly(java.io.Closeable c)
+    {
+        if (c != null)
+        {
+            try
+            {
+                c.close();
+            }
+            catch (java.io.IOException e)
+            {
+            }
+        }
+    }
+}
@@ -18,10 +18,34 @@ public class WavpackContext
 
    
     byte read_buffer[] = new byte[1024];	// was uchar in C
+    WavpackMetadata metadata = new WavpackMetadata();	// reused for every block
     public String error_message = "";
     public boolean error;
 
     java.io.DataInputStream infile;
+    java.nio.ByteBuffer mapped;	// only set when reading from a (mapped) buffer
+    java.nio.ByteBuffer block;	// the whole of the block being unpacked, see frame_block()
+    java.nio.channels.SeekableByteChannel channel;	// only set when opened for seeking
+    WavpackCorrectionReader wvc;	// only set when opened with a correction file
+    WavpackBlockIndex block_index;	// optional, speeds up seeking
+    boolean float_output;	// set while WavpackUnpackFloatSamples() is unpacking
+    WavpackOutput output = new WavpackOutput();	// where the samples go, unless they are wanted as ints
+    int sample_buffer[];	// what the other outputs unpack into, a stretch at a time
+    float float_buffer[];	// floats for a FloatBuffer without an accessible array
+    short short_buffer[];	// the same for a ShortBuffer
+
+    // multichannel files are decoded a segment at a time, with a context of
+    // its own for each block of the segment (sharing this context's config)
+
+    WavpackContext streams[];
+    WavpackContext spare_streams[];	// those of an earlier file, see reset_context()
+    WavpackStream own_stream;	// the context's stream, while it uses the first stream context's
+    int num_streams;
+    WavpackHeader segment_header = new WavpackHeader();
+    java.util.concurrent.ForkJoinPool stream_pool;	// decodes the streams concurrently if set
+    WavPackUtils.StreamTask stream_tasks[];
+    byte block_data[];	// what block holds, unless it is a view of a mapped buffer
+    int stream_samples[];	// this stream's decoded samples, before interleaving
     long total_samples, crc_errors, first_flags;		// was uint32_t in C
     int open_flags, norm_offset;
     int reduced_channels = 0;
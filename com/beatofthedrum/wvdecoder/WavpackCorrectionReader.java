@@ -0,0 +1,193 @@
+/*
+** WavpackCorrectionReader.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Reads the blocks of a "correction" (wvc) file in step with the main file.
+// The next block is always read ahead on an executor, so the correction file
+// is being read while the block before is unpacked. Only the read ahead
+// touches the input, and the decoder waits for it before looking at the
+// block. The reads block on I/O, so unless the caller supplies an executor
+// they are done on threads kept for the purpose (READ_AHEAD) rather than on
+// the ForkJoinPool that decodes, which they could otherwise starve.
+
+class WavpackCorrectionReader implements Runnable
+{
+    static final java.util.concurrent.ExecutorService READ_AHEAD =
+        java.util.concurrent.Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "WavPack wvc reader");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    java.io.DataInputStream infile;
+    java.util.concurrent.Executor executor;
+    WavpackHeader wphdr = new WavpackHeader();	// header of the block read ahead
+    byte block[] = new byte[0];	// the block read ahead, header included
+    boolean pending;	// the block is still being read, guarded by this
+    boolean end;	// there are no more blocks
+
+    WavpackCorrectionReader(java.io.DataInputStream infile)
+    {
+        this(infile, READ_AHEAD);
+    }
+
+    // As above, reading ahead on the specified executor.
+
+    WavpackCorrectionReader(java.io.DataInputStream infile, java.util.concurrent.Executor executor)
+    {
+        reopen(infile, executor);
+    }
+
+    // Start again on the correction file of another file, keeping the block
+    // array. Any read ahead of the old one must have been waited for (with
+    // peek()) first.
+
+    void reopen(java.io.DataInputStream infile, java.util.concurrent.Executor executor)
+    {
+        this.infile = infile;
+        this.executor = executor;
+        end = false;
+
+        prefetch();
+    }
+
+    // Read the next block on the executor, and say it is there.
+
+    public void run()
+    {
+        try
+        {
+            read_block();
+        }
+        catch (RuntimeException e)
+        {
+            end = true;	// as for a block cut short
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                pending = false;
+                notifyAll();
+            }
+        }
+    }
+
+    // Read the next block.
+
+    void read_block()
+    {
+        wphdr = WavPackUtils.read_next_header(infile, wphdr);
+
+        if (wphdr.status == 1)
+        {
+            end = true;
+            return;
+        }
+
+        int block_size = (int) wphdr.ckSize + 8;
+
+        if (block.length < block_size)
+            block = new byte[block_size];
+
+        System.arraycopy(wphdr.buffer, 0, block, 0, 32);
+
+        try
+        {
+            infile.readFully(block, 32, block_size - 32);
+        }
+        catch (java.io.IOException e)
+        {
+            end = true;
+        }
+    }
+
+    // Start reading the next block in the background.
+
+    void prefetch()
+    {
+        if (end)
+            return;
+
+        synchronized (this)
+        {
+            pending = true;
+        }
+
+        try
+        {
+            executor.execute(this);
+        }
+        catch (java.util.concurrent.RejectedExecutionException e)
+        {
+            run();	// an executor that has been shut down: read it here instead
+        }
+    }
+
+    // Return the header of the next block, waiting for it to be read if
+    // need be, or null if the correction file has no more blocks.
+
+    WavpackHeader peek()
+    {
+        boolean interrupted = false;
+
+        synchronized (this)
+        {
+            while (pending)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        return end ? null : wphdr;
+    }
+
+    // Copy the block returned by peek() into the specified array, which is
+    // replaced by a larger one if it is too small, and start reading the block
+    // after it. The array is at least BITSTREAM_BUFFER_SIZE bytes, which the
+    // bitstream needs when it is read past its end.
+
+    byte [] take(byte [] data)
+    {
+        int block_size = (int) wphdr.ckSize + 8;
+
+        if (data == null || data.length < block_size)
+            data = new byte[Math.max(block_size, Defines.BITSTREAM_BUFFER_SIZE)];
+
+        System.arraycopy(block, 0, data, 0, block_size);
+        prefetch();
+
+        return data;
+    }
+
+    // Drop the block returned by peek() and start reading the one after it.
+
+    void skip()
+    {
+        prefetch();
+    }
+}
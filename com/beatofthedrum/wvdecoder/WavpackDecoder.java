@@ -0,0 +1,245 @@
+/*
+** WavpackDecoder.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A decoder object for callers that run many decoders at once or keep them
+// for reuse. It owns one WavpackContext, and with it the stream, bitstream,
+// metadata and sample buffers that decoding uses; the WavPackUtils functions
+// keep no state of their own, so two decoders never share anything. When a
+// file is done, reset() binds the decoder to the next input and decodes it
+// with the buffers grown for the files before, instead of allocating a new
+// context for each file.
+//
+// A decoder is not thread-safe and must only be used by one thread at a
+// time. It can be passed from one thread to another (through a queue or a
+// pool, say) so long as the hand-over is synchronized, as it is by any of
+// the java.util.concurrent collections. The context returned by getContext()
+// belongs to the decoder and is only valid until the next reset() or close().
+// The decoder never closes the inputs it is given; they stay the caller's.
+
+public class WavpackDecoder implements java.io.Closeable
+{
+    WavpackContext wpc = new WavpackContext();
+    WavpackCorrectionReader wvc_reader;	// kept for the next hybrid file
+    java.util.concurrent.atomic.AtomicBoolean in_pool = new java.util.concurrent.atomic.AtomicBoolean();	// released to a WavpackDecoderPool
+
+
+    // Create a decoder with no input. reset() gives it a file to decode.
+
+    public WavpackDecoder()
+    {
+        wpc.error = true;
+        wpc.error_message = "no file open!";
+    }
+
+    // Create a decoder for the WavPack data read from infile. As with
+    // WavPackUtils.WavpackOpenFileInput(), getContext().error is set if the
+    // data is not valid.
+
+    public static WavpackDecoder open(java.io.DataInputStream infile)
+    {
+        WavpackDecoder decoder = new WavpackDecoder();
+
+        decoder.reset(infile);
+
+        return decoder;
+    }
+
+    // As above, with the correction file of a hybrid file read from wvc_infile.
+
+    public static WavpackDecoder open(java.io.DataInputStream infile, java.io.DataInputStream wvc_infile)
+    {
+        WavpackDecoder decoder = new WavpackDecoder();
+
+        decoder.reset(infile, wvc_infile);
+
+        return decoder;
+    }
+
+    // As above, with the correction file read ahead on the specified executor.
+
+    public static WavpackDecoder open(java.io.DataInputStream infile, java.io.DataInputStream wvc_infile,
+        java.util.concurrent.Executor executor)
+    {
+        WavpackDecoder decoder = new WavpackDecoder();
+
+        decoder.reset(infile, wvc_infile, executor);
+
+        return decoder;
+    }
+
+    // As above, with the WavPack data read straight out of a (normally mapped)
+    // buffer, from its current position.
+
+    public static WavpackDecoder open(java.nio.ByteBuffer buffer)
+    {
+        WavpackDecoder decoder = new WavpackDecoder();
+
+        decoder.reset(buffer);
+
+        return decoder;
+    }
+
+    // As above, with the WavPack data read from a seekable channel, so that
+    // seekSample() can be used. The index may be null.
+
+    public static WavpackDecoder open(java.nio.channels.SeekableByteChannel channel, WavpackBlockIndex index)
+    {
+        WavpackDecoder decoder = new WavpackDecoder();
+
+        decoder.reset(channel, index);
+
+        return decoder;
+    }
+
+
+    // Start decoding the WavPack data read from infile, dropping whatever
+    // file the decoder had before. Returns false if the data is not valid,
+    // in which case getContext().error_message says why.
+
+    public boolean reset(java.io.DataInputStream infile)
+    {
+        return reset(infile, null);
+    }
+
+    // As above, with the correction file of a hybrid file read from wvc_infile
+    // (if it is not null).
+
+    public boolean reset(java.io.DataInputStream infile, java.io.DataInputStream wvc_infile)
+    {
+        return reset(infile, wvc_infile, WavpackCorrectionReader.READ_AHEAD);
+    }
+
+    // As above, with the correction file read ahead on the specified executor
+    // (see WavPackUtils.WavpackOpenFileInput()).
+
+    public boolean reset(java.io.DataInputStream infile, java.io.DataInputStream wvc_infile,
+        java.util.concurrent.Executor executor)
+    {
+        WavPackUtils.reset_context(wpc);
+
+        wpc.infile = infile;
+
+        if (wvc_infile != null)
+        {
+            if (wvc_reader == null)
+                wvc_reader = new WavpackCorrectionReader(wvc_infile, executor);
+            else
+                wvc_reader.reopen(wvc_infile, executor);
+
+            wpc.wvc = wvc_reader;
+        }
+
+        return open_context();
+    }
+
+    // As above, with the WavPack data read straight out of a (normally mapped)
+    // buffer from its current position. The buffer itself is not modified.
+
+    public boolean reset(java.nio.ByteBuffer buffer)
+    {
+        WavPackUtils.reset_context(wpc);
+
+        wpc.mapped = buffer.duplicate();
+
+        return open_context();
+    }
+
+    // As above, with the WavPack data read from a seekable channel from its
+    // current position. The block index of the file, if not null, is used
+    // by seekSample().
+
+    public boolean reset(java.nio.channels.SeekableByteChannel channel, WavpackBlockIndex index)
+    {
+        WavPackUtils.reset_context(wpc);
+
+        wpc.infile = WavPackUtils.open_channel_stream(channel);
+        wpc.channel = channel;
+        wpc.block_index = index;
+
+        return open_context();
+    }
+
+    // Read the first block of the input set by one of the above.
+
+    boolean open_context()
+    {
+        WavPackUtils.open_context(wpc);
+
+        return !wpc.error;
+    }
+
+    // Finish with the current file. Any read ahead of its correction file is
+    // waited for, after which the caller can close the inputs. The decoder
+    // keeps its buffers and can still be reset() to another file.
+
+    public void close()
+    {
+        WavPackUtils.reset_context(wpc);
+
+        wpc.error = true;
+        wpc.error_message = "no file open!";
+    }
+
+
+    // Returns the context of the current file, which can be passed to any of
+    // the WavPackUtils functions (to get the file information, or to unpack
+    // samples in the forms not covered below).
+
+    public WavpackContext getContext()
+    {
+        return wpc;
+    }
+
+    // The same as WavPackUtils.WavpackUnpackSamples().
+
+    public long unpackSamples(int [] buffer, long samples)
+    {
+        return WavPackUtils.WavpackUnpackSamples(wpc, buffer, samples);
+    }
+
+    // The same as WavPackUtils.WavpackUnpackBlock().
+
+    public long unpackBlock(int [] buffer)
+    {
+        return WavPackUtils.WavpackUnpackBlock(wpc, buffer);
+    }
+
+    // The same as WavPackUtils.WavpackUnpackShortSamples().
+
+    public long unpackShortSamples(short [] buffer, long samples)
+    {
+        return WavPackUtils.WavpackUnpackShortSamples(wpc, buffer, samples);
+    }
+
+    // The same as WavPackUtils.WavpackUnpackFloatSamples().
+
+    public long unpackFloatSamples(float [] buffer, long samples)
+    {
+        return WavPackUtils.WavpackUnpackFloatSamples(wpc, buffer, samples);
+    }
+
+    // The same as WavPackUtils.WavpackUnpackPcmSamples().
+
+    public long unpackPcmSamples(java.nio.ByteBuffer buffer, long samples)
+    {
+        return WavPackUtils.WavpackUnpackPcmSamples(wpc, buffer, samples);
+    }
+
+    // The same as WavPackUtils.WavpackSeekSample(), for a decoder reading
+    // from a seekable channel.
+
+    public boolean seekSample(long sample)
+    {
+        return WavPackUtils.WavpackSeekSample(wpc, sample);
+    }
+}
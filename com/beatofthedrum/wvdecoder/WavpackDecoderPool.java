@@ -0,0 +1,154 @@
+/*
+** WavpackDecoderPool.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A bounded pool of WavpackDecoder objects, for callers that open a great
+// many short files. Setting up a new context (its stream with the sixteen
+// decorrelation passes, the bitstream and read buffers) can cost more than
+// decoding a short clip, whereas a pooled decoder is simply reset() onto the
+// next file and decodes it with the buffers it already has.
+//
+// The pool is thread-safe. A decoder taken from it belongs to the taking
+// thread (see WavpackDecoder) until it is handed back with release(), after
+// which it must not be touched. At most maxIdle decoders are kept waiting;
+// any more released than that are left for the garbage collector. The
+// counts of hits (decoders reused), misses (decoders created) and discards
+// show how well the pool is sized.
+
+public class WavpackDecoderPool
+{
+    java.util.concurrent.ArrayBlockingQueue<WavpackDecoder> idle;
+
+    java.util.concurrent.atomic.AtomicLong hits = new java.util.concurrent.atomic.AtomicLong();
+    java.util.concurrent.atomic.AtomicLong misses = new java.util.concurrent.atomic.AtomicLong();
+    java.util.concurrent.atomic.AtomicLong discards = new java.util.concurrent.atomic.AtomicLong();
+
+
+    // Create an empty pool that keeps up to maxIdle decoders for reuse.
+
+    public WavpackDecoderPool(int maxIdle)
+    {
+        idle = new java.util.concurrent.ArrayBlockingQueue<WavpackDecoder>(maxIdle);
+    }
+
+    // Take an idle decoder from the pool, or create one if there is none. The
+    // decoder has no file open; reset() it to one.
+
+    public WavpackDecoder acquire()
+    {
+        WavpackDecoder decoder = idle.poll();
+
+        if (decoder != null)
+        {
+            decoder.in_pool.set(false);
+            hits.incrementAndGet();
+            return decoder;
+        }
+
+        misses.incrementAndGet();
+
+        return new WavpackDecoder();
+    }
+
+    // Take a decoder as acquire() does and open the WavPack data in infile
+    // with it. If the data is not valid the decoder is returned all the same,
+    // with getContext().error set, and should be released as usual.
+
+    public WavpackDecoder open(java.io.DataInputStream infile)
+    {
+        WavpackDecoder decoder = acquire();
+
+        decoder.reset(infile);
+
+        return decoder;
+    }
+
+    // As above, with the correction file of a hybrid file read from wvc_infile.
+
+    public WavpackDecoder open(java.io.DataInputStream infile, java.io.DataInputStream wvc_infile)
+    {
+        WavpackDecoder decoder = acquire();
+
+        decoder.reset(infile, wvc_infile);
+
+        return decoder;
+    }
+
+    // As above, with the WavPack data read straight out of a (normally mapped)
+    // buffer, from its current position.
+
+    public WavpackDecoder open(java.nio.ByteBuffer buffer)
+    {
+        WavpackDecoder decoder = acquire();
+
+        decoder.reset(buffer);
+
+        return decoder;
+    }
+
+    // As above, with the WavPack data read from a seekable channel, so that
+    // seekSample() can be used. The index may be null.
+
+    public WavpackDecoder open(java.nio.channels.SeekableByteChannel channel, WavpackBlockIndex index)
+    {
+        WavpackDecoder decoder = acquire();
+
+        decoder.reset(channel, index);
+
+        return decoder;
+    }
+
+    // Give back a decoder taken from the pool. The decoder is closed, dropping
+    // its file (but not closing the inputs, which are the caller's), and kept
+    // for reuse if the pool has room for it. Releasing a decoder that has
+    // already been released throws IllegalStateException, since keeping it
+    // twice would hand the same decoder to two callers.
+
+    public void release(WavpackDecoder decoder)
+    {
+        if (!decoder.in_pool.compareAndSet(false, true))
+            throw new IllegalStateException("decoder released twice");
+
+        decoder.close();
+
+        if (!idle.offer(decoder))
+            discards.incrementAndGet();
+    }
+
+    // Returns the number of times acquire() reused an idle decoder.
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    // Returns the number of times acquire() had to create a decoder.
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    // Returns the number of released decoders not kept because the pool was full.
+
+    public long getDiscards()
+    {
+        return discards.get();
+    }
+
+    // Returns the number of decoders waiting in the pool.
+
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+}
@@ -20,6 +20,7 @@ class WavpackHeader
     short track_no, index_no;    // was uchar in C
     long total_samples, block_index, block_samples, flags, crc;    // was uint32_t in C
     int status = 0;    // 1 means error
+    long bytes_skipped;    // bytes passed over before this header was found
     byte buffer [] = new byte[32]; // 32 is the size of a WavPack Header
     byte temp [] = new byte[32];
 }
\ No newline at end of file
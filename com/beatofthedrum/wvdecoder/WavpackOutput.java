@@ -0,0 +1,176 @@
+/*
+** WavpackOutput.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Where the unpacked samples go when the caller does not want them as ints.
+// The last loop that touches each sample (the fused final decorrelation
+// pass, the end of fixup_samples() or the interleaving of a multichannel
+// segment) stores it here, converted on the way, so the samples are only
+// ever held as ints in the context's small sample_buffer and are not read
+// again afterwards. A value's index counts the values stored since the start
+// of the unpacking call, and index is that of the first value of the stretch
+// being unpacked.
+
+class WavpackOutput
+{
+    static final int INTS = 0;	// left in the int array, nothing is stored here
+
+    // packed little-endian PCM, the kind being the bytes per value
+
+    static final int PCM8 = 1;
+    static final int PCM16 = 2;
+    static final int PCM24 = 3;
+    static final int PCM32 = 4;
+
+    static final int FLOATS = 5;	// floats, scaled
+    static final int FLOAT_BITS = 6;	// the same, from the bits of IEEE floats
+    static final int SHORTS = 7;	// shorts, narrowed
+
+    int kind = INTS;
+    int index;	// where the stretch being unpacked goes
+    int offset;	// the index in floats or shorts, or byte position in pcm, of the call's first value
+
+    float floats[];
+    float scale;	// what floats are multiplied by (FLOAT_BITS ones only if it is not 1)
+
+    short shorts[];
+    int narrow;	// how far values are shifted right to make shorts
+
+    java.nio.ByteBuffer pcm;	// a little-endian view of the caller's buffer
+    java.nio.ByteBuffer pcm_source;	// the caller's buffer, so the view is made once for it
+
+
+    // Store PCM of the specified bytes per value into the buffer from its
+    // current position, through a little-endian view of it; neither the
+    // position nor the byte order of the buffer itself is changed.
+
+    void open_pcm(java.nio.ByteBuffer buffer, int bytes_per_sample)
+    {
+        if (buffer != pcm_source)
+        {
+            pcm = buffer.duplicate().order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            pcm_source = buffer;
+        }
+
+        pcm.limit(buffer.limit());
+        offset = buffer.position();
+        kind = bytes_per_sample;
+    }
+
+    // Store floats into the array from offset, multiplied by scale. With bits
+    // set the values are the bits of floats rather than integers.
+
+    void open_floats(float [] buffer, int offset, float scale, boolean bits)
+    {
+        floats = buffer;
+        this.offset = offset;
+        this.scale = scale;
+        kind = bits ? FLOAT_BITS : FLOATS;
+    }
+
+    // Store shorts into the array from offset, each value shifted right by
+    // narrow first.
+
+    void open_shorts(short [] buffer, int offset, int narrow)
+    {
+        shorts = buffer;
+        this.offset = offset;
+        this.narrow = narrow;
+        kind = SHORTS;
+    }
+
+    // Stop storing, and let go of the caller's buffers.
+
+    void close()
+    {
+        kind = INTS;
+        floats = null;
+        shorts = null;
+        pcm = pcm_source = null;
+    }
+
+    // Store one value. The switch is the same for every value of a loop, so
+    // the branch costs next to nothing.
+
+    void put(int index, int value)
+    {
+        switch (kind)
+        {
+            case PCM8:
+                pcm.put(offset + index, (byte) (value + 128));
+                break;
+
+            case PCM16:
+                pcm.putShort(offset + index * 2, (short) value);
+                break;
+
+            case PCM24:
+                pcm.putShort(offset + index * 3, (short) value);
+                pcm.put(offset + index * 3 + 2, (byte) (value >> 16));
+                break;
+
+            case FLOATS:
+                floats[offset + index] = value * scale;
+                break;
+
+            case FLOAT_BITS:
+                floats[offset + index] = scale == 1.0f ? Float.intBitsToFloat(value) : Float.intBitsToFloat(value) * scale;
+                break;
+
+            case SHORTS:
+                shorts[offset + index] = (short) (value >> narrow);
+                break;
+
+            default:
+                pcm.putInt(offset + index * 4, value);
+                break;
+        }
+    }
+
+    // Store count zeros (silence, which is 128 for 8-bit PCM and +0.0 for
+    // floats).
+
+    void zero(int index, int count)
+    {
+        for (int i = 0; i < count; i++)
+            put(index + i, 0);
+    }
+
+    // Store count values from the array, starting with values[start], each
+    // clipped to min_value..max_value and then shifted left by shift (which
+    // leaves them alone when the limits are those of an int and the shift is
+    // 0). The conversion for each kind is one of the SampleKernels.
+
+    void store(int [] values, int start, int count, int index, int min_value, int max_value, int shift)
+    {
+        switch (kind)
+        {
+            case FLOATS:
+                SampleKernels.kernels.to_floats(values, start, count, min_value, max_value, shift, scale, floats, offset + index);
+                break;
+
+            case FLOAT_BITS:
+                for (int i = 0; i < count; i++)
+                    put(index + i, values[start + i]);	// never clipped or shifted
+
+                break;
+
+            case SHORTS:
+                SampleKernels.kernels.to_shorts(values, start, count, min_value, max_value, shift, narrow, shorts, offset + index);
+                break;
+
+            default:
+                SampleKernels.kernels.pack(values, start, count, min_value, max_value, shift, pcm, offset + index * kind, kind);
+                break;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+** WavpackParallelDecoder.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Every WavPack block carries all the state needed to decode it (decorrelation
+// terms, weights and samples plus the entropy variables), so a file can be
+// split at block boundaries and the pieces decoded independently. This class
+// reads the raw blocks on the calling thread, decodes groups of them as tasks
+// on a ForkJoinPool and hands the results back in file order through
+// unpackSamples(), which behaves like WavPackUtils.WavpackUnpackSamples().
+// An instance must only be used by one thread at a time.
+
+public class WavpackParallelDecoder
+{
+    // Each task decodes complete blocks until at least this many samples are
+    // gathered, which keeps the per-task overhead small next to the decoding.
+
+    static final int TASK_SAMPLES = 65536;
+
+    static class Chunk
+    {
+        int [] data;
+        WavpackContext wpc; // the context that decoded it
+        long first_index;   // sample index of the first sample in data
+        long samples;       // complete samples held in data
+        long crc_errors;
+        boolean error;
+        String error_message = "";
+    }
+
+    java.io.DataInputStream infile;
+    java.util.concurrent.ForkJoinPool pool;
+    WavpackContext wpc;
+    int num_channels;
+    int max_tasks;
+
+    WavpackHeader wphdr = new WavpackHeader();
+    boolean header_pending = false;
+    boolean end_of_file = false;
+
+    java.util.ArrayDeque<java.util.concurrent.ForkJoinTask<Chunk>> tasks
+        = new java.util.ArrayDeque<java.util.concurrent.ForkJoinTask<Chunk>>();
+    Chunk current;
+    int chunk_pos;          // next complete sample to hand out from current
+    long sample_index;      // index of the next sample returned to the caller
+
+
+    // Open the WavPack data in infile for parallel decoding on the given pool.
+    // The first task is decoded up front, and the context it was decoded
+    // with describes the file, so getContext() can be passed to the usual
+    // WavPackUtils query functions. If the data is not valid then
+    // getContext().error is set.
+
+    public WavpackParallelDecoder(java.io.DataInputStream infile, java.util.concurrent.ForkJoinPool pool)
+    {
+        this.infile = infile;
+        this.pool = pool;
+        this.max_tasks = pool.getParallelism() * 2;
+
+        DecodeTask first = read_blocks();
+
+        if (first == null)
+        {
+            wpc = new WavpackContext();
+            wpc.error = true;
+            wpc.error_message = "not compatible with this version of WavPack file!";
+            return;
+        }
+
+        tasks.add(pool.submit(first));
+        current = next_chunk();
+
+        if (current == null)
+            return;
+
+        wpc = current.wpc;      // which has counted the chunk's crc errors
+        num_channels = WavPackUtils.WavpackGetReducedChannels(wpc);
+        sample_index = current.first_index;
+        wpc.stream.sample_index = sample_index;
+    }
+
+
+    // Returns the context describing the file. The number of crc errors and
+    // the sample index are kept up to date as samples are unpacked.
+
+    public WavpackContext getContext()
+    {
+        return wpc;
+    }
+
+
+    // Unpack the specified number of complete samples, exactly as
+    // WavPackUtils.WavpackUnpackSamples() does for a sequential context. The
+    // actual number of samples unpacked is returned, which is less than the
+    // number requested only at the end of the file or if an error occurs.
+
+    public long unpackSamples(int [] buffer, long samples)
+    {
+        long samples_unpacked = 0;
+        int buf_idx = 0;
+
+        if (wpc.error)
+            return 0;
+
+        while (samples > 0)
+        {
+            if (current == null || chunk_pos == current.samples)
+            {
+                current = next_chunk();
+
+                if (current == null)
+                    break;
+
+                chunk_pos = 0;
+            }
+
+            long samples_to_copy;
+
+            if (sample_index < current.first_index)
+            {
+                // a gap between blocks is filled with silence, as in the sequential decoder
+
+                samples_to_copy = current.first_index - sample_index;
+
+                if (samples_to_copy > samples)
+                    samples_to_copy = samples;
+
+                java.util.Arrays.fill(buffer, buf_idx, buf_idx + (int) samples_to_copy * num_channels, 0);
+            }
+            else
+            {
+                samples_to_copy = current.samples - chunk_pos;
+
+                if (samples_to_copy > samples)
+                    samples_to_copy = samples;
+
+                System.arraycopy(current.data, chunk_pos * num_channels, buffer, buf_idx,
+                    (int) samples_to_copy * num_channels);
+                chunk_pos += (int) samples_to_copy;
+            }
+
+            buf_idx += (int) samples_to_copy * num_channels;
+            samples_unpacked += samples_to_copy;
+            samples -= samples_to_copy;
+            sample_index += samples_to_copy;
+            wpc.stream.sample_index = sample_index;
+        }
+
+        return samples_unpacked;
+    }
+
+
+    // Stop any decoding still queued on the pool. The input stream is left
+    // open for the caller to close.
+
+    public void close()
+    {
+        java.util.concurrent.ForkJoinTask<Chunk> task;
+
+        while ((task = tasks.poll()) != null)
+            task.cancel(false);
+
+        current = null;
+        end_of_file = true;
+    }
+
+
+    // Keep the pool busy with up to max_tasks queued tasks and return the
+    // next decoded chunk in file order, or null when there is nothing left.
+
+    Chunk next_chunk()
+    {
+        while (tasks.size() < max_tasks && !end_of_file)
+        {
+            DecodeTask task = read_blocks();
+
+            if (task == null)
+                break;
+
+            tasks.add(pool.submit(task));
+        }
+
+        java.util.concurrent.ForkJoinTask<Chunk> task = tasks.poll();
+
+        if (task == null)
+            return null;
+
+        Chunk chunk;
+
+        try
+        {
+            chunk = task.join();
+        }
+        catch (RuntimeException e)
+        {
+            chunk = null;
+        }
+
+        if (chunk == null || chunk.error)
+        {
+            if (wpc == null)
+                wpc = new WavpackContext();     // the first chunk, which would have given the context
+
+            wpc.error = true;
+            wpc.error_message = (chunk == null) ? "decoding task failed!" : chunk.error_message;
+            close();
+            return null;
+        }
+
+        if (wpc != null)
+        {
+            wpc.crc_errors += chunk.crc_errors;
+            chunk.wpc = null;   // only the first chunk's context is kept
+        }
+
+        return chunk;
+    }
+
+
+    // Read whole blocks from the input until at least TASK_SAMPLES samples are
+    // covered and the next block starts a new multichannel segment. Each
+    // block (header included) is read with WavPackUtils.read_block() straight
+    // after the one before it in a single array, which is first sized for
+    // TASK_SAMPLES samples of blocks like the first and grows if that is not
+    // enough. A task to decode them is returned, or null at the end of the
+    // file.
+
+    DecodeTask read_blocks()
+    {
+        byte [] blocks = null;
+        int length = 0;
+        long samples = 0;
+
+        while (!end_of_file)
+        {
+            if (!header_pending)
+            {
+                wphdr = WavPackUtils.read_next_header(infile, wphdr);
+
+                if (wphdr.status == 1)
+                {
+                    end_of_file = true;
+                    break;
+                }
+            }
+
+            if (length > 0 && samples >= TASK_SAMPLES && (wphdr.flags & Defines.INITIAL_BLOCK) != 0)
+            {
+                header_pending = true;
+                break;
+            }
+
+            header_pending = false;
+
+            int block_size = (int) wphdr.ckSize + 8;
+
+            if (block_size < 32)
+            {
+                end_of_file = true;
+                break;
+            }
+
+            if (blocks == null)
+                blocks = new byte[(int) Math.min((long) block_size * (TASK_SAMPLES / Math.max(wphdr.block_samples, 1) + 1),
+                    Math.max(block_size, TASK_SAMPLES * 8))];
+            else if (blocks.length - length < block_size)
+                blocks = java.util.Arrays.copyOf(blocks, Math.max(blocks.length * 2, length + block_size));
+
+            if (WavPackUtils.read_block(infile, wphdr, blocks, length) == Defines.FALSE)
+            {
+                end_of_file = true;
+                break;
+            }
+
+            length += block_size;
+
+            if ((wphdr.flags & Defines.INITIAL_BLOCK) != 0)
+                samples += wphdr.block_samples;
+        }
+
+        if (length == 0)
+            return null;
+
+        return new DecodeTask(blocks, length, samples);
+    }
+
+
+    static class DecodeTask implements java.util.concurrent.Callable<Chunk>
+    {
+        final byte [] blocks;
+        final int length;           // bytes of blocks in use
+        final long block_samples;   // samples covered by the initial blocks
+
+        DecodeTask(byte [] blocks, int length, long block_samples)
+        {
+            this.blocks = blocks;
+            this.length = length;
+            this.block_samples = block_samples;
+        }
+
+        // The blocks are decoded straight out of the array, as from a mapped
+        // file.
+
+        public Chunk call()
+        {
+            Chunk chunk = new Chunk();
+            WavpackContext wpc = WavPackUtils.WavpackOpenFileInput(java.nio.ByteBuffer.wrap(blocks, 0, length));
+
+            if (wpc.error)
+            {
+                chunk.error = true;
+                chunk.error_message = wpc.error_message;
+                return chunk;
+            }
+
+            chunk.wpc = wpc;
+            chunk.first_index = wpc.stream.sample_index;
+            chunk.data = new int[(int) block_samples * WavPackUtils.WavpackGetReducedChannels(wpc)];
+            chunk.samples = WavPackUtils.WavpackUnpackSamples(wpc, chunk.data, block_samples);
+            chunk.crc_errors = WavPackUtils.WavpackGetNumErrors(wpc);
+
+            return chunk;
+        }
+    }
+}
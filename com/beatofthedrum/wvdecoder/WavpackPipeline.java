@@ -0,0 +1,346 @@
+/*
+** WavpackPipeline.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Decodes a file in three stages that run at the same time, so that waiting
+// for the input or the output does not hold up the decoding: a reader thread
+// reads whole blocks ahead from the input, the thread calling run() decodes
+// them with WavpackUnpackBlock(), and a sink thread passes the samples on to
+// a Sink. The stages are joined by bounded single-producer, single-consumer
+// rings (WavpackRing), with a second ring going back the other way for each,
+// so that the block and sample buffers are reused rather than allocated for
+// every block. Only the calling thread touches the context. The input is
+// left open for the caller to close.
+
+public class WavpackPipeline
+{
+    // Where the decoded samples go. write() is called on the sink thread, in
+    // file order, with a number of complete samples (interleaved as from
+    // WavpackUnpackSamples()); the array is reused once write() returns. An
+    // exception thrown by write() (checked or not) stops the pipeline and
+    // comes out of run().
+
+    public interface Sink
+    {
+        void write(int [] samples, int sample_count) throws java.io.IOException;
+    }
+
+    static final int RING_BLOCKS = 8;	// blocks read ahead
+    static final int RING_CHUNKS = 4;	// blocks of samples waiting for the sink
+
+    static class Block
+    {
+        byte [] data = new byte[Defines.BITSTREAM_BUFFER_SIZE];
+        int length;
+        boolean end;	// no more blocks
+    }
+
+    static class Chunk
+    {
+        int [] samples;
+        int sample_count;
+        boolean end;	// no more samples
+    }
+
+    java.io.DataInputStream infile;
+    WavpackContext wpc;
+
+    WavpackRing<Block> blocks = new WavpackRing<Block>(RING_BLOCKS);
+    WavpackRing<Block> free_blocks = new WavpackRing<Block>(RING_BLOCKS);
+    WavpackRing<Chunk> chunks = new WavpackRing<Chunk>(RING_CHUNKS);
+    WavpackRing<Chunk> free_chunks = new WavpackRing<Chunk>(RING_CHUNKS);
+
+    Thread reader;
+    volatile Throwable failure;	// the first thing thrown on the reader or sink thread
+
+
+    // Start reading the WavPack data in infile ahead, and open it (reading the
+    // first block) so that getContext() can be passed to the usual
+    // WavPackUtils query functions. If the data is not valid then
+    // getContext().error is set, and close() should be called.
+
+    public WavpackPipeline(java.io.DataInputStream infile)
+    {
+        this.infile = infile;
+
+        for (int i = 0; i < RING_BLOCKS; i++)
+            free_blocks.put(new Block());
+
+        reader = new Thread("WavPack reader")
+        {
+            public void run()
+            {
+                read_blocks();
+            }
+        };
+
+        reader.setDaemon(true);
+        reader.start();
+
+        try
+        {
+            wpc = WavPackUtils.WavpackOpenFileInput(new java.io.DataInputStream(new BlockInput()));
+        }
+        catch (RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+        catch (Error e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    // Returns the context describing the file. It must only be used by the
+    // thread that calls run().
+
+    public WavpackContext getContext()
+    {
+        return wpc;
+    }
+
+    // Decode the whole file (from where it was opened) into the sink. The
+    // number of complete samples decoded is returned once the sink has had
+    // them all. Whatever stops any of the stages early (an exception from
+    // the sink, the input or the decoding) stops all of them, and is thrown
+    // from here.
+
+    public long run(final Sink sink) throws java.io.IOException
+    {
+        long total_samples = 0;
+
+        if (wpc.error)
+            return 0;
+
+        try
+        {
+            int chunk_size = (int) WavPackUtils.WavpackGetBlockSamples(wpc) * WavPackUtils.WavpackGetReducedChannels(wpc);
+
+            for (int i = 0; i < RING_CHUNKS; i++)
+            {
+                Chunk chunk = new Chunk();
+
+                chunk.samples = new int[chunk_size];
+                free_chunks.put(chunk);
+            }
+
+            Thread writer = new Thread("WavPack sink")
+            {
+                public void run()
+                {
+                    write_chunks(sink);
+                }
+            };
+
+            writer.setDaemon(true);
+            writer.start();
+
+            while (true)
+            {
+                Chunk chunk = free_chunks.take();
+
+                if (chunk == null)
+                    break;
+
+                chunk.sample_count = (int) WavPackUtils.WavpackUnpackBlock(wpc, chunk.samples);
+                chunk.end = chunk.sample_count == 0;
+                total_samples += chunk.sample_count;
+
+                if (!chunks.put(chunk) || chunk.end)
+                    break;
+            }
+
+            writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        }
+        finally
+        {
+            close();
+        }
+
+        Throwable e = failure;
+
+        if (e instanceof java.io.IOException)
+            throw (java.io.IOException) e;
+        else if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e instanceof Error)
+            throw (Error) e;
+        else if (e != null)
+            throw new java.io.IOException(e);
+
+        return total_samples;
+    }
+
+    // Stop all the stages. The reader finishes any read it is in the middle
+    // of (closing the input cuts this short) and then exits.
+
+    public void close()
+    {
+        blocks.close();
+        free_blocks.close();
+        chunks.close();
+        free_chunks.close();
+    }
+
+
+    // Note what has stopped the reader or sink stage, and stop the others.
+    // Only the first failure is kept.
+
+    synchronized void fail(Throwable e)
+    {
+        if (failure == null)
+            failure = e;
+
+        close();
+    }
+
+    // The reader stage: read each block whole into a free Block and pass it
+    // on, until the end of the input (or a block that is cut short).
+
+    void read_blocks()
+    {
+        WavpackHeader wphdr = new WavpackHeader();
+
+        try
+        {
+            while (true)
+            {
+                Block block = free_blocks.take();
+
+                if (block == null)
+                    return;
+
+                wphdr = WavPackUtils.read_next_header(infile, wphdr);
+                block.end = wphdr.status == 1;
+
+                if (!block.end)
+                {
+                    block.length = (int) wphdr.ckSize + 8;
+
+                    if (block.data.length < block.length)
+                        block.data = new byte[block.length];
+
+                    System.arraycopy(wphdr.buffer, 0, block.data, 0, 32);
+
+                    try
+                    {
+                        infile.readFully(block.data, 32, block.length - 32);
+                    }
+                    catch (java.io.IOException e)
+                    {
+                        block.end = true;
+                    }
+                }
+
+                if (!blocks.put(block) || block.end)
+                    return;
+            }
+        }
+        catch (Throwable e)
+        {
+            fail(e);
+        }
+    }
+
+    // The sink stage: hand each chunk of samples to the sink and give it back.
+
+    void write_chunks(Sink sink)
+    {
+        while (true)
+        {
+            Chunk chunk = chunks.take();
+
+            if (chunk == null || chunk.end)
+                return;
+
+            try
+            {
+                sink.write(chunk.samples, chunk.sample_count);
+            }
+            catch (Throwable e)
+            {
+                fail(e);
+                return;
+            }
+
+            if (!free_chunks.put(chunk))
+                return;
+        }
+    }
+
+    // The blocks from the reader, as the input of the context.
+
+    class BlockInput extends java.io.InputStream
+    {
+        Block block;
+        int position;
+
+        // Make sure there is something left in the current block, taking the
+        // next one if need be. False is returned at the end of the blocks.
+
+        boolean fill()
+        {
+            while (block == null || position == block.length)
+            {
+                if (block != null)
+                {
+                    if (block.end)
+                        return false;
+
+                    free_blocks.put(block);
+                }
+
+                block = blocks.take();
+                position = 0;
+
+                if (block == null)
+                    return false;
+
+                if (block.end)
+                    block.length = 0;
+            }
+
+            return true;
+        }
+
+        public int read()
+        {
+            return fill() ? block.data[position++] & 0xff : -1;
+        }
+
+        // Reads run on across blocks, as read_next_header() takes a short read
+        // to mean the end of the file.
+
+        public int read(byte [] buffer, int offset, int length)
+        {
+            int total = 0;
+
+            while (total < length && fill())
+            {
+                int count = Math.min(length - total, block.length - position);
+
+                System.arraycopy(block.data, position, buffer, offset + total, count);
+                position += count;
+                total += count;
+            }
+
+            return total == 0 && length > 0 ? -1 : total;
+        }
+    }
+}
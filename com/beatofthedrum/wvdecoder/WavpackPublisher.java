@@ -0,0 +1,288 @@
+/*
+** WavpackPublisher.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// Publishes the samples of an opened context as chunks, decoding only as far
+// as the subscriber has asked for. It follows the reactive streams protocol
+// of java.util.concurrent.Flow in Java 9 (whose Subscriber and Subscription
+// the nested interfaces here mirror method for method) without needing it:
+// the subscriber gets onSubscribe(), asks for chunks with
+// Subscription.request(n), and is sent at most that many onNext() calls
+// before onComplete() at the end of the file (or onError() if the file
+// cannot be decoded). On Java 9 or later asFlowPublisher() gives the same
+// as a Flow.Publisher.
+//
+// The chunks come from a fixed pool and go back to it with Chunk.release()
+// once the subscriber is done with them, so however slow the subscriber is
+// no more than the pool's worth of samples is ever held; the decoding simply
+// waits for a chunk to come back. A chunk is a fixed number of samples rather
+// than a block, so cancel() takes effect part way through a block. The
+// decoding runs on the given executor, one chunk after another, and from then
+// on the context belongs to the publisher. The executor is always the
+// caller's: decoding is long-running work that would take threads of a
+// shared pool such as the common ForkJoinPool from everything else using
+// it. There can only be one subscriber.
+
+public class WavpackPublisher
+{
+    // Mirrors java.util.concurrent.Flow.Subscriber.
+
+    public interface Subscriber
+    {
+        void onSubscribe(Subscription subscription);
+        void onNext(Chunk chunk);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    // Mirrors java.util.concurrent.Flow.Subscription.
+
+    public interface Subscription
+    {
+        void request(long n);
+        void cancel();
+    }
+
+    // A chunk of decoded samples, interleaved as from WavpackUnpackSamples().
+    // It must be released once the subscriber has finished with it, after
+    // which it must not be touched, as it will be filled again.
+
+    public class Chunk
+    {
+        int samples[];
+        int sample_count;
+
+        // Returns the array holding the samples, which can be longer than
+        // getSampleCount() complete samples.
+
+        public int [] getSamples()
+        {
+            return samples;
+        }
+
+        // Returns the number of complete samples in the chunk.
+
+        public int getSampleCount()
+        {
+            return sample_count;
+        }
+
+        // Give the chunk back to the publisher, to be filled again. This can
+        // be called from any thread.
+
+        public void release()
+        {
+            free_chunks.offer(this);
+            schedule();
+        }
+    }
+
+    WavpackContext wpc;
+    int chunk_samples;
+    java.util.concurrent.Executor executor;
+
+    java.util.concurrent.ArrayBlockingQueue<Chunk> free_chunks;
+    java.util.concurrent.atomic.AtomicBoolean subscribed = new java.util.concurrent.atomic.AtomicBoolean();
+    java.util.concurrent.atomic.AtomicLong demand = new java.util.concurrent.atomic.AtomicLong();
+    java.util.concurrent.atomic.AtomicInteger pending = new java.util.concurrent.atomic.AtomicInteger();
+    volatile boolean cancelled;
+    volatile Throwable failure;	// a bad request(), for drain() to report
+    boolean done;	// only touched by drain()
+    Subscriber subscriber;
+
+    Runnable drain_task = new Runnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+    };
+
+
+    // Publish the samples of wpc from where it is, in chunks of up to
+    // chunk_samples complete samples, with at most chunks of them out at
+    // once, decoding on the executor.
+
+    public WavpackPublisher(WavpackContext wpc, int chunk_samples, int chunks, java.util.concurrent.Executor executor)
+    {
+        this.wpc = wpc;
+        this.chunk_samples = chunk_samples;
+        this.executor = executor;
+
+        free_chunks = new java.util.concurrent.ArrayBlockingQueue<Chunk>(chunks);
+
+        for (int i = 0; i < chunks; i++)
+        {
+            Chunk chunk = new Chunk();
+
+            chunk.samples = new int[chunk_samples * Math.max(WavPackUtils.WavpackGetReducedChannels(wpc), 1)];
+            free_chunks.offer(chunk);
+        }
+    }
+
+    // Returns this publisher as a java.util.concurrent.Flow.Publisher of its
+    // chunks, for anything written against Flow. This class is built for
+    // Java 8, which has no Flow, so the result is typed by the caller, as in
+    //
+    //   Flow.Publisher<WavpackPublisher.Chunk> flow = publisher.asFlowPublisher();
+    //
+    // The adapter is in the Java 9 part of the multi-release jar; without it
+    // (on Java 8, or from a plain "javac *.java" build)
+    // UnsupportedOperationException is thrown. Subscribing to either one
+    // counts as the publisher's one subscriber.
+
+    @SuppressWarnings("unchecked")
+    public <T> T asFlowPublisher()
+    {
+        Class<?> adapter;
+
+        try
+        {
+            adapter = Class.forName("com.beatofthedrum.wvdecoder.WavpackFlowPublisher");
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new UnsupportedOperationException("Flow needs Java 9 and the multi-release jar of the decoder");
+        }
+
+        try
+        {
+            return (T) adapter.getDeclaredConstructor(WavpackPublisher.class).newInstance(this);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Start publishing to the subscriber. A second subscriber is refused
+    // with onError().
+
+    public void subscribe(Subscriber subscriber)
+    {
+        if (!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Subscription()
+            {
+                public void request(long n)
+                {
+                }
+
+                public void cancel()
+                {
+                }
+            });
+
+            subscriber.onError(new IllegalStateException("WavpackPublisher allows only one subscriber"));
+            return;
+        }
+
+        this.subscriber = subscriber;
+
+        subscriber.onSubscribe(new Subscription()
+        {
+            public void request(long n)
+            {
+                if (n <= 0)
+                {
+                    failure = new IllegalArgumentException("non-positive request " + n);
+                    schedule();
+                    return;
+                }
+
+                while (true)
+                {
+                    long current = demand.get();
+                    long updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+
+                    if (demand.compareAndSet(current, updated))
+                        break;
+                }
+
+                schedule();
+            }
+
+            public void cancel()
+            {
+                cancelled = true;
+            }
+        });
+    }
+
+
+    // Make sure drain() runs after whatever has just changed, without ever
+    // running two of it at once: the call that finds nothing pending starts
+    // it, and it goes round again for each call made while it was running.
+
+    void schedule()
+    {
+        if (pending.getAndIncrement() == 0)
+            executor.execute(drain_task);
+    }
+
+    // Decode and send chunks while there is demand and a free chunk, and
+    // finish the subscription at the end of the file (or on a bad request).
+
+    void drain()
+    {
+        int missed = 1;
+
+        do
+        {
+            if (failure != null && !cancelled && !done)
+            {
+                done = true;
+                subscriber.onError(failure);
+            }
+
+            while (!cancelled && !done && demand.get() > 0)
+            {
+                Chunk chunk = free_chunks.poll();
+
+                if (chunk == null)
+                    break;	// release() will schedule us again
+
+                long samples = WavPackUtils.WavpackUnpackSamples(wpc, chunk.samples, chunk_samples);
+
+                if (samples == 0)
+                {
+                    free_chunks.offer(chunk);
+                    done = true;
+
+                    if (wpc.error)
+                        subscriber.onError(new java.io.IOException(wpc.error_message));
+                    else
+                        subscriber.onComplete();
+
+                    break;
+                }
+
+                chunk.sample_count = (int) samples;
+
+                if (demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+
+                try
+                {
+                    subscriber.onNext(chunk);
+                }
+                catch (RuntimeException e)
+                {
+                    cancelled = true;	// a subscriber that throws is treated as cancelled
+                }
+            }
+
+            missed = pending.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+}
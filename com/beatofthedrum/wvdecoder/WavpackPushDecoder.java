@@ -0,0 +1,276 @@
+/*
+** WavpackPushDecoder.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A decoder that is given its input rather than reading it, for callers that
+// get the data in pieces from non-blocking I/O (a Selector loop, say) and so
+// cannot hand the decoder a stream to block on. The bytes are passed to
+// feed() as they arrive, in chunks of any size, and are kept until a whole
+// block (for multichannel files, a whole segment of blocks) is there, at
+// which point blockReady() returns true and unpackBlock() decodes it. The
+// search for block headers that read_next_header() does on a stream is done
+// here a step at a time over the bytes fed so far, picking up where it left
+// off on each feed(), so nothing ever waits for more input.
+//
+// The decoder keeps only the data from the block being decoded onwards, so
+// its memory is about one block plus whatever has been fed ahead of the
+// decoding. Like WavpackDecoder, it must only be used by one thread at a time.
+
+public class WavpackPushDecoder
+{
+    static final int INITIAL_SIZE = 65536;
+
+    WavpackContext wpc = new WavpackContext();	// reads the buffered blocks as a mapped buffer
+    WavpackHeader wphdr = new WavpackHeader();	// the header search's own
+
+    byte buffer[] = new byte[INITIAL_SIZE];
+    int end;	// end of the bytes fed so far
+    int scan;	// where the header search carries on from
+    int ready;	// end of the last whole segment found; the context reads up to here
+    int segments;	// whole segments found but not yet completely unpacked
+    long bytes_skipped;	// since the last header, as in read_next_header()
+    boolean opened;	// the context has been opened on the first segment
+    boolean input_done;	// no more segments will be found
+    boolean ended;	// no more samples will be unpacked
+
+
+    // Create a decoder waiting for the start of a WavPack file.
+
+    public WavpackPushDecoder()
+    {
+    }
+
+    // Add the remaining bytes of data (advancing its position to its limit)
+    // to the input. Data fed after finish() is ignored.
+
+    public void feed(java.nio.ByteBuffer data)
+    {
+        int count = data.remaining();
+
+        if (input_done)
+        {
+            data.position(data.limit());
+            return;
+        }
+
+        if (count > buffer.length - end)
+            make_room(count);
+
+        data.get(buffer, end, count);
+        end += count;
+
+        find_segments();
+    }
+
+    // Say that the input has ended. Whole blocks still buffered can be
+    // unpacked as usual; a block cut short at the end is dropped.
+
+    public void finish()
+    {
+        input_done = true;
+    }
+
+    // Returns true if unpackBlock() has samples to unpack, that is if the
+    // block it is part way through or a whole new block is buffered. The
+    // first time this is so the context is opened, after which getContext()
+    // describes the file (and WavpackGetBlockSamples() can size the buffer
+    // for unpackBlock()). If the data turns out not to be a valid WavPack
+    // file then getContext().error is set and false is returned from then on.
+
+    public boolean blockReady()
+    {
+        if (ended)
+            return false;
+
+        if (opened && in_block())
+            return true;
+
+        if (segments == 0)
+        {
+            if (input_done)
+            {
+                if (!opened)
+                {
+                    wpc.error = true;
+                    wpc.error_message = "not compatible with this version of WavPack file!";
+                }
+
+                ended = true;
+            }
+
+            return false;
+        }
+
+        if (!opened)
+        {
+            wpc.mapped = java.nio.ByteBuffer.wrap(buffer);
+            wpc.mapped.limit(ready);
+            opened = true;
+
+            WavPackUtils.open_context(wpc);
+
+            if (wpc.error)
+            {
+                ended = true;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Unpack the rest of the current block, or the whole of the next one, as
+    // WavPackUtils.WavpackUnpackBlock() does. The number of complete samples
+    // unpacked is returned, which is 0 if no block is ready (feed() more, or
+    // see isFinished()).
+
+    public long unpackBlock(int [] samples)
+    {
+        if (!blockReady())
+            return 0;
+
+        long samples_unpacked = WavPackUtils.WavpackUnpackBlock(wpc, samples);
+
+        if (samples_unpacked == 0)
+        {
+            // a block that cannot be unpacked ends the file, as it does for
+            // the other WavPackUtils inputs
+
+            ended = true;
+            return 0;
+        }
+
+        if (!in_block())
+            segments--;
+
+        return samples_unpacked;
+    }
+
+    // Returns true once no more samples will be unpacked: finish() has been
+    // called and every whole block unpacked, or the data is not valid.
+
+    public boolean isFinished()
+    {
+        if (!ended && !input_done)
+            return false;
+
+        return !blockReady();
+    }
+
+    // Returns the context describing the file, for the usual WavPackUtils
+    // query functions. It is only valid once blockReady() has returned true
+    // (or getContext().error is set), and must not be used to unpack samples.
+
+    public WavpackContext getContext()
+    {
+        return wpc;
+    }
+
+
+    // Returns true if the context is part way through a block, which still
+    // reads the bytes of that block where they are in buffer.
+
+    boolean in_block()
+    {
+        WavpackStream wps = wpc.stream;
+
+        return wps.sample_index < wps.wphdr.block_index + wps.wphdr.block_samples;
+    }
+
+    // The header search: find the block headers in the bytes fed since the
+    // last time, just as read_next_header() would, passing over each whole
+    // block that is found. A block that holds samples and is the final one
+    // of its segment completes a segment, and the context may then read up
+    // to the end of it.
+
+    void find_segments()
+    {
+        while (end - scan >= 32)
+        {
+            if (buffer[scan] == 'w')
+            {
+                System.arraycopy(buffer, scan, wphdr.buffer, 0, 32);
+
+                if (WavPackUtils.parse_header(wphdr))
+                {
+                    long block_size = wphdr.ckSize + 8;
+
+                    if (block_size > end - scan)
+                        return;		// wait for the rest of the block
+
+                    scan += (int) block_size;
+                    bytes_skipped = 0;
+
+                    if (wphdr.block_samples > 0 && (wphdr.flags & Defines.FINAL_BLOCK) != 0)
+                    {
+                        ready = scan;
+                        segments++;
+
+                        if (opened)
+                            wpc.mapped.limit(ready);
+                    }
+
+                    continue;
+                }
+            }
+
+            scan++;
+
+            if (++bytes_skipped > 1048576L)
+            {
+                input_done = true;	// read_next_header() gives up here too
+                return;
+            }
+        }
+    }
+
+    // Make room for count more bytes, dropping the bytes before the context's
+    // position (all of which have been unpacked) and growing the buffer if
+    // that is not enough. The bytes are moved within the buffer when the
+    // context is between blocks, but copied to a new buffer if it is part
+    // way through one, since its bitstream still reads the old one.
+
+    void make_room(int count)
+    {
+        int consumed = opened ? wpc.mapped.position() : 0;
+        int needed = end - consumed + count;
+        byte target [] = buffer;
+
+        if (needed > buffer.length)
+            target = new byte[Math.max(needed, buffer.length * 2)];
+        else if (opened && in_block())
+            target = new byte[buffer.length];
+
+        System.arraycopy(buffer, consumed, target, 0, end - consumed);
+
+        buffer = target;
+        end -= consumed;
+        scan -= consumed;
+        ready -= consumed;
+
+        if (opened)
+        {
+            // the context's views of the old bytes are made again when it
+            // frames the next block
+
+            wpc.mapped = java.nio.ByteBuffer.wrap(buffer);
+            wpc.mapped.limit(ready);
+            wpc.block = null;
+
+            for (int s = 0; wpc.streams != null && s < wpc.streams.length; s++)
+            {
+                if (wpc.streams[s] != null)
+                    wpc.streams[s].block = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+** WavpackRing.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A bounded ring buffer handing objects from one producer thread to one
+// consumer thread without locks. Each index is only ever written by its own
+// side, and is written after the slot it covers, so reading the other side's
+// (volatile) index is all the synchronization needed. A side that finds the
+// ring full or empty spins for a little while and then parks in short spells
+// until the other side catches up, or until either side closes the ring to
+// give up on it.
+
+class WavpackRing<T>
+{
+    static final int SPINS = 256;	// tries before parking
+    static final long PARK_NANOS = 20000;
+
+    final Object slots[];
+    final int mask;
+    volatile long head;	// the next slot to take, only written by the consumer
+    volatile long tail;	// the next slot to put, only written by the producer
+    volatile boolean closed;
+
+    // Create a ring holding up to capacity objects, rounded up to a power of two.
+
+    WavpackRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    // Add an object, waiting for room if the ring is full. False is returned
+    // (and the object is not added) if the ring has been closed.
+
+    boolean put(T item)
+    {
+        long t = tail;
+
+        for (int spins = 0; t - head == slots.length; spins++)
+        {
+            if (closed)
+                return false;
+
+            pause(spins);
+        }
+
+        slots[(int) t & mask] = item;
+        tail = t + 1;
+
+        return true;
+    }
+
+    // Remove the oldest object, waiting for one if the ring is empty. Null is
+    // returned if the ring has been closed.
+
+    @SuppressWarnings("unchecked")
+    T take()
+    {
+        long h = head;
+
+        for (int spins = 0; h == tail; spins++)
+        {
+            if (closed)
+                return null;
+
+            pause(spins);
+        }
+
+        T item = (T) slots[(int) h & mask];
+
+        slots[(int) h & mask] = null;
+        head = h + 1;
+
+        return item;
+    }
+
+    // Make both sides give up, now and on every later call.
+
+    void close()
+    {
+        closed = true;
+    }
+
+    static void pause(int spins)
+    {
+        if (spins < SPINS)
+            Thread.yield();
+        else
+            java.util.concurrent.locks.LockSupport.parkNanos(PARK_NANOS);
+    }
+}
@@ -15,6 +15,21 @@ class WavpackStream
 {
     WavpackHeader wphdr = new WavpackHeader();
     Bitstream wvbits = new Bitstream();
+    Bitstream wvcbits = new Bitstream();
+    boolean wvc_open;	// the block has a correction block, read into wvc_data
+    byte wvc_data[];
+    long wvc_crc;	// crc of the corrected samples, from the correction block
+    int correction[];	// corrections read from wvcbits, one per value unpacked
+
+    Bitstream wvxbits = new Bitstream();
+    boolean wvx_open;	// the block has a "wvx" bitstream (from the block or its correction block)
+    byte wvx_data[];
+    long crc_x, crc_wvx;	// extended crc, as computed and as sent in the "wvx" metadata
+    boolean wvx_used;	// the block's values have been completed from wvxbits, so crc_x applies
+
+    int dc_error[] = new int[2];	// noise shaping state (only needed with correction)
+    int dc_shaping_acc[] = new int[2];
+    int dc_shaping_delta[] = new int[2];
 
     words_data w = new words_data();
 
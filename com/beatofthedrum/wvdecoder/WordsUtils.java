@@ -98,20 +98,6 @@ class WordsUtils
     };
 
 
-    static final char ones_count_table [] = 
-    {
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,5,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,6,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,5,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,7,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,5,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,6,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,5,
-    0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,4,0,1,0,2,0,1,0,3,0,1,0,2,0,1,0,8
-    };
-
-
-
     ///////////////////////////// executable code ////////////////////////////////
 
 
@@ -121,18 +107,8 @@ class WordsUtils
 
     static int read_entropy_vars(WavpackStream wps, WavpackMetadata wpmd)
     {
-        byte byteptr [] = wpmd.data; //byteptr needs to be unsigned chars, so convert to int array
-        int [] b_array = new int[12];
-        int i = 0;
-        words_data w = new words_data();
-
-        for (i = 0; i < 6; i++)
-        {
-            b_array[i] = (byteptr[i] & 0xff);
-        }
-
-        w.holding_one = 0;
-        w.holding_zero = 0;
+        byte byteptr [] = wpmd.data;
+        words_data w = wps.w;
 
         if (wpmd.byte_length != 12)
         {
@@ -142,22 +118,30 @@ class WordsUtils
             }
         }
 
-        w.c[0].median[0] = exp2s(b_array[0] + (b_array[1] << 8));
-        w.c[0].median[1] = exp2s(b_array[2] + (b_array[3] << 8));
-        w.c[0].median[2] = exp2s(b_array[4] + (b_array[5] << 8));
+        // the words state starts afresh with each set of entropy variables
 
-        if ((wps.wphdr.flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0)
+        w.bitrate_delta[0] = w.bitrate_delta[1] = 0;
+        w.bitrate_acc[0] = w.bitrate_acc[1] = 0;
+        w.pend_data = w.holding_one = w.zeros_acc = 0;
+        w.holding_zero = w.pend_count = 0;
+
+        for (int i = 0; i < 2; i++)
         {
-            for (i = 6; i < 12; i++)
-            {
-                b_array[i] = (byteptr[i] & 0xff);
-            }
-            w.c[1].median[0] = exp2s(b_array[6] + (b_array[7] << 8));
-            w.c[1].median[1] = exp2s(b_array[8] + (b_array[9] << 8));
-            w.c[1].median[2] = exp2s(b_array[10] + (b_array[11] << 8));
+            w.c[i].slow_level = 0;
+            w.c[i].median[0] = w.c[i].median[1] = w.c[i].median[2] = 0;
+            w.c[i].error_limit = 0;
         }
 
-        wps.w = w;
+        w.c[0].median[0] = exp2s((byteptr[0] & 0xff) + ((byteptr[1] & 0xff) << 8));
+        w.c[0].median[1] = exp2s((byteptr[2] & 0xff) + ((byteptr[3] & 0xff) << 8));
+        w.c[0].median[2] = exp2s((byteptr[4] & 0xff) + ((byteptr[5] & 0xff) << 8));
+
+        if ((wps.wphdr.flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0)
+        {
+            w.c[1].median[0] = exp2s((byteptr[6] & 0xff) + ((byteptr[7] & 0xff) << 8));
+            w.c[1].median[1] = exp2s((byteptr[8] & 0xff) + ((byteptr[9] & 0xff) << 8));
+            w.c[1].median[2] = exp2s((byteptr[10] & 0xff) + ((byteptr[11] & 0xff) << 8));
+        }
 
         return Defines.TRUE;
     }
@@ -312,11 +296,14 @@ class WordsUtils
     // function can be used for hybrid or lossless streams, but since an
     // optimized version is available for lossless this function would normally
     // be used for hybrid only. If a hybrid lossless stream is being read then
-    // the "correction" offset is written at the specified pointer. A return value
-    // of WORD_EOF indicates that the end of the bitstream was reached (all 1s) or
-    // some other error occurred.
-
-    static int get_words(long nsamples, long flags, words_data w, Bitstream bs, int [] buffer, int bufferStartPos)
+    // the "correction" offset of each value is read from wvcbs and written to
+    // the correction array (which must be cleared, and is indexed from 0 for
+    // the first value); pass null for lossy decoding. The number of samples
+    // read is returned, which is less than requested if the end of the
+    // bitstream was reached (all 1s) or some other error occurred.
+
+    static int get_words(long nsamples, long flags, words_data w, Bitstream bs, int [] buffer, int bufferStartPos,
+        int [] correction, Bitstream wvcbs)
     {
         entropy_data [] c = w.c;
         int csamples;
@@ -347,7 +334,6 @@ class WordsUtils
                 && (w.c[1].median[0] & ~1) == 0)
             {
 
-                long mask;
                 int cbits;
 
                 if (w.zeros_acc > 0)
@@ -364,14 +350,7 @@ class WordsUtils
                 }
                 else
                 {
-                    cbits = 0;
-                    BitsUtils.getbit(bs);
-
-                    while (cbits < 33 && bs.bitval > 0)
-                    {
-                        cbits++;
-                        BitsUtils.getbit(bs);
-                    }
+                    cbits = BitsUtils.getones(bs, 33);
 
                     if (cbits == 33)
                     {
@@ -382,20 +361,8 @@ class WordsUtils
                         w.zeros_acc = cbits;
                     else
                     {
-
                         --cbits;
-
-                        for (mask = 1,
-                        w.zeros_acc = 0; cbits > 0; mask <<= 1)
-                        {
-                            BitsUtils.getbit(bs);
-
-                            if (bs.bitval > 0)
-                                w.zeros_acc |= mask;
-                            cbits--;
-                        }
-
-                        w.zeros_acc |= mask;
+                        w.zeros_acc = BitsUtils.getbits(cbits, bs) | (1L << cbits);
                     }
 
                     if (w.zeros_acc > 0)
@@ -420,90 +387,31 @@ class WordsUtils
                 ones_count = w.holding_zero = 0;
             else
             {
-                int next8;
-                int uns_buf;
+                ones_count = BitsUtils.getones(bs, LIMIT_ONES + 1);
 
-                if (bs.bc < 8)
+                if (ones_count == (LIMIT_ONES + 1))
                 {
-
-                    bs.ptr++;
-                    bs.buf_index++;
-
-                    if (bs.ptr == bs.end)
-                        BitsUtils.bs_read(bs);
-
-                    uns_buf = (bs.buf[bs.buf_index] & 0xff);
-
-                    bs.sr = bs.sr | (uns_buf << bs.bc); // values in buffer must be unsigned
-
-                    next8 = (int)(bs.sr & 0xff);
-
-                    bs.bc += 8;
+                    break;
                 }
-                else
-                    next8 = (int)(bs.sr & 0xff);
 
-                if (next8 == 0xff)
+                if (ones_count == LIMIT_ONES)
                 {
+                    int cbits = BitsUtils.getones(bs, 33);
 
-                    bs.bc -= 8;
-                    bs.sr >>= 8;
-
-                    ones_count = 8;
-                    BitsUtils.getbit(bs);
-
-                    while (ones_count < (LIMIT_ONES + 1) && bs.bitval > 0)
-                    {
-                        ones_count++;
-                        BitsUtils.getbit(bs);
-                    }
-
-                    if (ones_count == (LIMIT_ONES + 1))
+                    if (cbits == 33)
                     {
                         break;
                     }
 
-                    if (ones_count == LIMIT_ONES)
+                    if (cbits < 2)
+                        ones_count = cbits;
+                    else
                     {
-                        long mask;
-                        int cbits;
-
-                        cbits = 0;
-                        BitsUtils.getbit(bs);
-
-                        while (cbits < 33 && bs.bitval > 0)
-                        {
-                            cbits++;
-                            BitsUtils.getbit(bs);
-                        }
-
-                        if (cbits == 33)
-                        {
-                            break;
-                        }
-
-                        if (cbits < 2)
-                            ones_count = cbits;
-                        else
-                        {
-                            for (mask = 1,
-                            ones_count = 0; --cbits > 0; mask <<= 1)
-                            {
-                                BitsUtils.getbit(bs);
-
-                                if (bs.bitval > 0)
-                                    ones_count |= mask;
-                            }
-                            ones_count |= mask;
-                        }
-
-                        ones_count += LIMIT_ONES;
+                        --cbits;
+                        ones_count = BitsUtils.getbits(cbits, bs) | (1L << cbits);
                     }
-                }
-                else
-                {
-                    bs.bc -= (ones_count = ones_count_table[next8]) + 1;
-                    bs.sr = bs.sr >> ones_count + 1; // needs to be unsigned
+
+                    ones_count += LIMIT_ONES;
                 }
 
                 if (w.holding_one > 0)
@@ -572,10 +480,7 @@ class WordsUtils
             else
                 while (high - low > c[entidx].error_limit)
                 {
-
-                    BitsUtils.getbit(bs);
-
-                    if (bs.bitval > 0)
+                    if (BitsUtils.getbit(bs) != 0)
                     {
                         mid = (high + (low = mid) + 1) >> 1;
                     }
@@ -585,9 +490,9 @@ class WordsUtils
                     }
                 }
 
-            BitsUtils.getbit(bs);
+            int sign = BitsUtils.getbit(bs);
 
-            if (bs.bitval > 0)
+            if (sign != 0)
             {
                 buffer[buffer_counter] = (int)~mid;
             }
@@ -596,6 +501,13 @@ class WordsUtils
                 buffer[buffer_counter] = (int) mid;
             }
 
+            if (correction != null && c[entidx].error_limit != 0)
+            {
+                long value = read_code(wvcbs, high - low) + low;
+
+                correction[buffer_counter - bufferStartPos] = (int) (sign != 0 ? mid - value : value - mid);
+            }
+
             buffer_counter++;
 
             if ((flags & Defines.HYBRID_BITRATE) > 0)
@@ -614,6 +526,174 @@ class WordsUtils
         }
     }
 
+    // This is an optimized version of get_words() that is used for lossless
+    // blocks only (HYBRID_FLAG clear). There is no error limit to honor, so
+    // every value is read with read_code(), and neither update_error_limit()
+    // nor the slow_level bookkeeping (which only hybrid decoding uses) is
+    // needed. The channel alternation is done with an xor so the loop has no
+    // per-sample mono/stereo test.
+
+    static int get_words_lossless(long nsamples, long flags, words_data w, Bitstream bs, int [] buffer, int bufferStartPos)
+    {
+        entropy_data [] c = w.c;
+        entropy_data c0 = c[0], c1 = c[1];
+        int csamples;
+        int buffer_counter = bufferStartPos;
+        int entidx, entflip;
+
+        if ((flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) == 0) // if not mono
+        {
+            nsamples *= 2;
+            entidx = 1;
+            entflip = 1;
+        }
+        else
+        {
+            entidx = 0;
+            entflip = 0;
+        }
+
+        for (csamples = 0; csamples < nsamples; ++csamples)
+        {
+            long ones_count, low, high;
+            entropy_data ce;
+
+            entidx ^= entflip;
+            ce = c[entidx];
+
+            if ((c0.median[0] & ~1) == 0 && w.holding_zero == 0 && w.holding_one == 0
+                && (c1.median[0] & ~1) == 0)
+            {
+                if (w.zeros_acc > 0)
+                {
+                    --w.zeros_acc;
+
+                    if (w.zeros_acc > 0)
+                    {
+                        buffer[buffer_counter++] = 0;
+                        continue;
+                    }
+                }
+                else
+                {
+                    int cbits = BitsUtils.getones(bs, 33);
+
+                    if (cbits == 33)
+                        break;
+
+                    if (cbits < 2)
+                        w.zeros_acc = cbits;
+                    else
+                    {
+                        --cbits;
+                        w.zeros_acc = BitsUtils.getbits(cbits, bs) | (1L << cbits);
+                    }
+
+                    if (w.zeros_acc > 0)
+                    {
+                        c0.median[0] = c0.median[1] = c0.median[2] = 0;
+                        c1.median[0] = c1.median[1] = c1.median[2] = 0;
+
+                        buffer[buffer_counter++] = 0;
+                        continue;
+                    }
+                }
+            }
+
+            if (w.holding_zero > 0)
+                ones_count = w.holding_zero = 0;
+            else
+            {
+                ones_count = BitsUtils.getones(bs, LIMIT_ONES + 1);
+
+                if (ones_count == (LIMIT_ONES + 1))
+                    break;
+
+                if (ones_count == LIMIT_ONES)
+                {
+                    int cbits = BitsUtils.getones(bs, 33);
+
+                    if (cbits == 33)
+                        break;
+
+                    if (cbits < 2)
+                        ones_count = cbits;
+                    else
+                    {
+                        --cbits;
+                        ones_count = BitsUtils.getbits(cbits, bs) | (1L << cbits);
+                    }
+
+                    ones_count += LIMIT_ONES;
+                }
+
+                if (w.holding_one > 0)
+                {
+                    w.holding_one = ones_count & 1;
+                    ones_count = (ones_count >> 1) + 1;
+                }
+                else
+                {
+                    w.holding_one = ones_count & 1;
+                    ones_count >>= 1;
+                }
+
+                w.holding_zero = (int) (~w.holding_one & 1);
+            }
+
+            if (ones_count == 0)
+            {
+                low = 0;
+                high = (ce.median[0] >> 4);
+                ce.median[0] -= ((ce.median[0] + (DIV0 - 2)) / DIV0) * 2;
+            }
+            else
+            {
+                low = (ce.median[0] >> 4) + 1;
+                ce.median[0] += ((ce.median[0] + DIV0) / DIV0) * 5;
+
+                if (ones_count == 1)
+                {
+                    high = low + (ce.median[1] >> 4);
+                    ce.median[1] -= ((ce.median[1] + (DIV1 - 2)) / DIV1) * 2;
+                }
+                else
+                {
+                    low += (ce.median[1] >> 4) + 1;
+                    ce.median[1] += ((ce.median[1] + DIV1) / DIV1) * 5;
+
+                    if (ones_count == 2)
+                    {
+                        high = low + (ce.median[2] >> 4);
+                        ce.median[2] -= ((ce.median[2] + (DIV2 - 2)) / DIV2) * 2;
+                    }
+                    else
+                    {
+                        low += (ones_count - 2) * ((ce.median[2] >> 4) + 1);
+                        high = low + (ce.median[2] >> 4);
+                        ce.median[2] += ((ce.median[2] + DIV2) / DIV2) * 5;
+                    }
+                }
+            }
+
+            low += read_code(bs, high - low);
+
+            if (BitsUtils.getbit(bs) != 0)
+                buffer[buffer_counter++] = (int) ~low;
+            else
+                buffer[buffer_counter++] = (int) low;
+        }
+
+        if ((flags & (Defines.MONO_FLAG | Defines.FALSE_STEREO)) != 0)
+        {
+            return csamples;
+        }
+        else
+        {
+            return (csamples / 2);
+        }
+    }
+
     static int count_bits(long av)
     {
         if (av < (1 << 8))
@@ -645,10 +725,13 @@ class WordsUtils
     // from 0 to maxcode. If there are exactly a power of two number of possible
     // codes then this will read a fixed number of bits; otherwise it reads the
     // minimum number of bits and then determines whether another bit is needed
-    // to define the code.
+    // to define the code. The maximum is a uint32_t in C, so a negative
+    // high - low from a damaged block is taken as it is there.
 
     static long read_code(Bitstream bs, long maxcode)
     {
+        maxcode &= 0xFFFFFFFFL;
+
         int bitcount = count_bits(maxcode);
         long extras = (1L << bitcount) - maxcode - 1, code;
 
@@ -659,16 +742,12 @@ class WordsUtils
 
         code = BitsUtils.getbits(bitcount - 1, bs);
 
-        code &= (1L << (bitcount - 1)) - 1;
-
         if (code >= extras)
         {
 
             code = (code << 1) - extras;
 
-            BitsUtils.getbit(bs);
-
-            if (bs.bitval > 0)
+            if (BitsUtils.getbit(bs) != 0)
                 ++code;
         }
 
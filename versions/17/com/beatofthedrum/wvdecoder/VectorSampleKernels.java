@@ -0,0 +1,284 @@
+/*
+** VectorSampleKernels.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// The SampleKernels done with the Vector API (jdk.incubator.vector), a whole
+// vector of values at a time. This is compiled for Java 17 into the
+// META-INF/versions/17 part of the multi-release jar, and is only loaded by
+// SampleKernels.load() when the JVM was started with
+// "--add-modules jdk.incubator.vector". Each kernel does whole vectors and
+// leaves what is left over to the scalar kernel, as it does PCM stores into
+// direct or read-only buffers. The plain shifts are not here at all: the
+// JIT vectorizes the scalar loops for those by itself, and they measured
+// faster than the same with the Vector API, whereas it leaves the loops that
+// clip, check the mute limit or convert as they are. Only loads and stores
+// of arrays are used (not of buffers, which later JDKs replaced with memory
+// segments), and packed PCM relies on the Vector API's little-endian order
+// of the bytes of a vector on every platform.
+
+class VectorSampleKernels extends SampleKernels
+{
+    static final jdk.incubator.vector.VectorSpecies<Integer> INTS = jdk.incubator.vector.IntVector.SPECIES_PREFERRED;
+    static final int LANES = INTS.length();
+
+    // the same number of lanes of the other element types
+
+    static final jdk.incubator.vector.VectorSpecies<Float> FLOATS =
+        jdk.incubator.vector.VectorShape.forBitSize(LANES * 32).withLanes(float.class);
+    static final jdk.incubator.vector.VectorSpecies<Short> SHORTS =
+        jdk.incubator.vector.VectorShape.forBitSize(LANES * 16).withLanes(short.class);
+    static final jdk.incubator.vector.VectorSpecies<Byte> BYTES =
+        jdk.incubator.vector.VectorShape.forBitSize(LANES * 8).withLanes(byte.class);
+
+    // swaps the left and right values of each stereo sample
+
+    static final jdk.incubator.vector.VectorShuffle<Integer> SWAP =
+        jdk.incubator.vector.VectorShuffle.fromOp(INTS, i -> i ^ 1);
+    static final jdk.incubator.vector.VectorMask<Integer> LEFT =
+        jdk.incubator.vector.VectorMask.fromLong(INTS, 0x5555555555555555L);
+    static final jdk.incubator.vector.VectorMask<Integer> RIGHT = LEFT.not();
+
+    // packs the low 3 bytes of each int of a vector into its first LANES * 3
+    // bytes, for 24-bit PCM
+
+    static final jdk.incubator.vector.VectorShuffle<Byte> PACK_24 =
+        jdk.incubator.vector.VectorShuffle.fromOp(INTS.withLanes(byte.class),
+            i -> i < LANES * 3 ? i / 3 * 4 + i % 3 : i);
+
+    // the powers of 3 by which the crc multiplies each lane's values:
+    // 3^(LANES - 1) for the first lane down to 1 for the last, and 3^LANES
+    // for a whole vector
+
+    static final jdk.incubator.vector.IntVector CRC_POWERS;
+    static final int CRC_STEP;
+
+    static
+    {
+        int [] powers = new int[LANES];
+        int power = 1;
+
+        for (int lane = LANES - 1; lane >= 0; lane--)
+        {
+            powers[lane] = power;
+            power *= 3;
+        }
+
+        CRC_POWERS = jdk.incubator.vector.IntVector.fromArray(INTS, powers, 0);
+        CRC_STEP = power;
+    }
+
+
+    // Used only with vectors of at least 8 ints (AVX2 or AVX-512), as 8-bit
+    // PCM needs a vector of at least 8 bytes; with narrower vectors the JIT
+    // does about as well with the scalar loops.
+
+    @Override
+    boolean usable()
+    {
+        return LANES >= 8;
+    }
+
+    @Override
+    String describe()
+    {
+        return "vector (" + INTS.vectorBitSize() + " bits)";
+    }
+
+    @Override
+    void clip_shift(int [] values, int start, int end, int min_value, int max_value, int shift)
+    {
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES)
+            clip_shift(values, i, min_value, max_value, shift).intoArray(values, i);
+
+        super.clip_shift(values, i, end, min_value, max_value, shift);
+    }
+
+    @Override
+    void shift_clip(int [] values, int start, int end, int shift, int min_value, int max_value)
+    {
+        jdk.incubator.vector.VectorOperators.Binary op = shift >= 0
+            ? jdk.incubator.vector.VectorOperators.LSHL : jdk.incubator.vector.VectorOperators.ASHR;
+        int count = shift >= 0 ? shift : -shift;
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES)
+            jdk.incubator.vector.IntVector.fromArray(INTS, values, i)
+                .lanewise(op, count)
+                .max(min_value)
+                .min(max_value)
+                .intoArray(values, i);
+
+        super.shift_clip(values, i, end, shift, min_value, max_value);
+    }
+
+    // A whole vector of stereo samples at a time, with joint stereo undone
+    // by swapping each left value with its right one. The crc is kept as
+    // one running sum per lane, each multiplied by 3^LANES a vector, as the
+    // crc of a sequence of values is the sum of each value times 3 to the
+    // power of the number of values after it (with ints, which wrap, in
+    // both). A vector with a value over the mute limit is left for the
+    // scalar kernel, to stop at the exact sample.
+
+    @Override
+    int stereo_crc(WavpackStream wps, int [] buffer, int start, int count, int mute_limit, boolean joint)
+    {
+        jdk.incubator.vector.IntVector sums = jdk.incubator.vector.IntVector.zero(INTS);
+        int end = start + count * 2;
+        int power = 1;
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES)
+        {
+            jdk.incubator.vector.IntVector value = jdk.incubator.vector.IntVector.fromArray(INTS, buffer, i);
+
+            if (joint)
+            {
+                value = value.sub(value.rearrange(SWAP).lanewise(jdk.incubator.vector.VectorOperators.ASHR, 1), RIGHT);
+                value = value.add(value.rearrange(SWAP), LEFT);
+            }
+
+            if (value.abs().compare(jdk.incubator.vector.VectorOperators.GT, mute_limit).anyTrue())
+                break;
+
+            value.intoArray(buffer, i);
+            sums = sums.mul(CRC_STEP).add(value);
+            power *= CRC_STEP;
+        }
+
+        wps.crc = (int) wps.crc * power + sums.mul(CRC_POWERS).reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        return (i - start) / 2 + super.stereo_crc(wps, buffer, i, (end - i) / 2, mute_limit, joint);
+    }
+
+    @Override
+    int mono_crc(WavpackStream wps, int [] buffer, int start, int count, int mute_limit)
+    {
+        jdk.incubator.vector.IntVector sums = jdk.incubator.vector.IntVector.zero(INTS);
+        int end = start + count;
+        int power = 1;
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES)
+        {
+            jdk.incubator.vector.IntVector value = jdk.incubator.vector.IntVector.fromArray(INTS, buffer, i);
+
+            if (value.abs().compare(jdk.incubator.vector.VectorOperators.GT, mute_limit).anyTrue())
+                break;
+
+            sums = sums.mul(CRC_STEP).add(value);
+            power *= CRC_STEP;
+        }
+
+        wps.crc = (int) wps.crc * power + sums.mul(CRC_POWERS).reduceLanes(jdk.incubator.vector.VectorOperators.ADD);
+
+        return (i - start) + super.mono_crc(wps, buffer, i, end - i, mute_limit);
+    }
+
+    // Heap buffers are packed straight into their arrays, a vector's bytes
+    // at a time. For 24-bit PCM a vector of ints is stored whole once it has
+    // been shuffled, so each store writes LANES bytes past its values, which
+    // the next one overwrites; the vectors stop where that would reach past
+    // the last value. Anything that would pass the limit of the buffer is
+    // left to the scalar kernel, which throws as the buffer would.
+
+    @Override
+    void pack(int [] values, int start, int count, int min_value, int max_value, int shift,
+        java.nio.ByteBuffer pcm, int position, int bytes_per_sample)
+    {
+        if (!pcm.hasArray() || position + count * bytes_per_sample > pcm.limit())
+        {
+            super.pack(values, start, count, min_value, max_value, shift, pcm, position, bytes_per_sample);
+            return;
+        }
+
+        byte [] array = pcm.array();
+        int end = start + count;
+        int at = pcm.arrayOffset() + position;
+        int stored = bytes_per_sample == 3 ? 4 : bytes_per_sample;	// the bytes a vector stores for each value
+        int stop = at + (count - LANES) * bytes_per_sample - LANES * (stored - bytes_per_sample);
+        int i = start;
+
+        for (; at <= stop; i += LANES, at += LANES * bytes_per_sample)
+        {
+            jdk.incubator.vector.IntVector value = clip_shift(values, i, min_value, max_value, shift);
+
+            switch (bytes_per_sample)
+            {
+                case 1:
+                    ((jdk.incubator.vector.ByteVector) value.add(128)
+                        .convertShape(jdk.incubator.vector.VectorOperators.I2B, BYTES, 0))
+                        .intoArray(array, at);
+                    break;
+
+                case 2:
+                    value.convertShape(jdk.incubator.vector.VectorOperators.I2S, SHORTS, 0)
+                        .reinterpretAsBytes()
+                        .intoArray(array, at);
+                    break;
+
+                case 3:
+                    value.reinterpretAsBytes().rearrange(PACK_24).intoArray(array, at);
+                    break;
+
+                default:
+                    value.reinterpretAsBytes().intoArray(array, at);
+                    break;
+            }
+        }
+
+        super.pack(values, i, end - i, min_value, max_value, shift, pcm, at - pcm.arrayOffset(), bytes_per_sample);
+    }
+
+    @Override
+    void to_floats(int [] values, int start, int count, int min_value, int max_value, int shift,
+        float scale, float [] floats, int position)
+    {
+        int end = start + count;
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES, position += LANES)
+            ((jdk.incubator.vector.FloatVector) clip_shift(values, i, min_value, max_value, shift)
+                .convertShape(jdk.incubator.vector.VectorOperators.I2F, FLOATS, 0))
+                .mul(scale)
+                .intoArray(floats, position);
+
+        super.to_floats(values, i, end - i, min_value, max_value, shift, scale, floats, position);
+    }
+
+    @Override
+    void to_shorts(int [] values, int start, int count, int min_value, int max_value, int shift,
+        int narrow, short [] shorts, int position)
+    {
+        int end = start + count;
+        int i = start;
+
+        for (; i <= end - LANES; i += LANES, position += LANES)
+            ((jdk.incubator.vector.ShortVector) clip_shift(values, i, min_value, max_value, shift)
+                .lanewise(jdk.incubator.vector.VectorOperators.ASHR, narrow)
+                .convertShape(jdk.incubator.vector.VectorOperators.I2S, SHORTS, 0))
+                .intoArray(shorts, position);
+
+        super.to_shorts(values, i, end - i, min_value, max_value, shift, narrow, shorts, position);
+    }
+
+    // Returns the vector of values from values[i], clipped and shifted.
+
+    static jdk.incubator.vector.IntVector clip_shift(int [] values, int i, int min_value, int max_value, int shift)
+    {
+        return jdk.incubator.vector.IntVector.fromArray(INTS, values, i)
+            .max(min_value)
+            .min(max_value)
+            .lanewise(jdk.incubator.vector.VectorOperators.LSHL, shift);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+** WavpackFlowPublisher.java
+**
+** Copyright (c) 2007 - 2013 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.wvdecoder;
+
+// A WavpackPublisher as a java.util.concurrent.Flow.Publisher, as returned
+// by WavpackPublisher.asFlowPublisher(). It needs Java 9, so it is compiled
+// into the META-INF/versions/9 part of the multi-release jar and is not there
+// on Java 8 (or in a plain "javac *.java" build); being package-private, it
+// does not add to the public classes of the jar, whose base part has to have
+// them all. Subscribing goes straight through to the WavpackPublisher, with
+// Flow's Subscriber and Subscription adapted to its own.
+
+class WavpackFlowPublisher implements java.util.concurrent.Flow.Publisher<WavpackPublisher.Chunk>
+{
+    WavpackPublisher publisher;
+
+
+    WavpackFlowPublisher(WavpackPublisher publisher)
+    {
+        this.publisher = publisher;
+    }
+
+    // Start publishing to the subscriber, which must not be null. A second
+    // subscriber is refused with onError().
+
+    public void subscribe(java.util.concurrent.Flow.Subscriber<? super WavpackPublisher.Chunk> subscriber)
+    {
+        java.util.Objects.requireNonNull(subscriber, "subscriber");
+
+        publisher.subscribe(new WavpackPublisher.Subscriber()
+        {
+            public void onSubscribe(WavpackPublisher.Subscription subscription)
+            {
+                subscriber.onSubscribe(new java.util.concurrent.Flow.Subscription()
+                {
+                    public void request(long n)
+                    {
+                        subscription.request(n);
+                    }
+
+                    public void cancel()
+                    {
+                        subscription.cancel();
+                    }
+                });
+            }
+
+            public void onNext(WavpackPublisher.Chunk chunk)
+            {
+                subscriber.onNext(chunk);
+            }
+
+            public void onError(Throwable throwable)
+            {
+                subscriber.onError(throwable);
+            }
+
+            public void onComplete()
+            {
+                subscriber.onComplete();
+            }
+        });
+    }
+}